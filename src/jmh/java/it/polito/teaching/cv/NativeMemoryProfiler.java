@@ -0,0 +1,53 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.Pointer;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A JMH profiler reporting the native memory tracked by JavaCPP: how much
+ * it grows during each iteration, per operation and in total, and the
+ * resident memory of the process. A steady-state hot path shows no growth.
+ *
+ * @since 1.6
+ */
+public class NativeMemoryProfiler implements InternalProfiler {
+
+    private long totalBefore;
+
+    @Override
+    public String getDescription() {
+        return "JavaCPP native memory (Pointer.totalBytes/physicalBytes)";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        this.totalBefore = Pointer.totalBytes();
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                       IterationParams iterationParams, IterationResult result) {
+        long total = Pointer.totalBytes();
+        long growth = total - this.totalBefore;
+        long ops = result.getMetadata().getAllOps();
+
+        List<Result> results = new ArrayList<>();
+        results.add(new ScalarResult("·native.growth.norm", ops > 0 ? (double) growth / ops : Double.NaN,
+                "B/op", AggregationPolicy.AVG));
+        results.add(new ScalarResult("·native.growth", growth, "B", AggregationPolicy.AVG));
+        results.add(new ScalarResult("·native.total", total, "B", AggregationPolicy.MAX));
+        results.add(new ScalarResult("·native.physical", Pointer.physicalBytes(), "B", AggregationPolicy.MAX));
+        return results;
+    }
+
+}
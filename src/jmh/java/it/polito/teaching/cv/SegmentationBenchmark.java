@@ -0,0 +1,203 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgcodecs.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The per-frame cost of the segmentation hot paths, at the usual camera
+ * resolutions, on the sample picture of the project and on synthetic frames.
+ * <p>
+ * Run it through {@link SegmentationBenchmarks} to also get the heap (GC
+ * profiler) and native ({@link NativeMemoryProfiler}) memory churn.
+ *
+ * @since 1.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentationBenchmark {
+
+    @Param({"480p", "720p", "1080p", "2160p"})
+    public String resolution;
+
+    @Param({"original", "synthetic"})
+    public String input;
+
+    private static final SegmentationParams CANNY = SegmentationParams.builder()
+            .mode(SegmentationMode.CANNY).cannyThreshold(30).build();
+    private static final SegmentationParams PYRAMID_CANNY = CANNY.toBuilder().cannyPyramidLevel(1).build();
+    private static final SegmentationParams BACKGROUND_SUBTRACTION = SegmentationParams.builder()
+            .mode(SegmentationMode.BACKGROUND_SUBTRACTION).build();
+
+    private Mat frame;
+    private SegmentationEngine engine;
+    private FxFrameRenderer renderer;
+    private BytePointer encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int height = Integer.parseInt(this.resolution.substring(0, this.resolution.length() - 1));
+        int width = height == 480 ? 640 : height * 16 / 9;
+
+        this.frame = new Mat();
+        if (this.input.equals("original")) {
+            // the sample picture, scaled to the resolution
+            Mat original = loadResource("/original.png");
+            resize(original, this.frame, new Size(width, height));
+            original.deallocate();
+        } else {
+            SyntheticFrameSource source = new SyntheticFrameSource(width, height, 30, -1);
+            source.open();
+            for (int i = 0; i < 10; i++)
+                source.read(this.frame);
+        }
+
+        this.engine = new SegmentationEngine();
+        this.renderer = new FxFrameRenderer();
+        this.encoded = new BytePointer();
+
+        // compute the Hue plane used by histAverage()
+        this.engine.process(this.frame, SegmentationParams.builder()
+                .mode(SegmentationMode.BACKGROUND_REMOVAL).build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.engine.close();
+        this.renderer.close();
+        this.frame.release();
+        this.encoded.deallocate();
+    }
+
+    @Benchmark
+    public Mat canny() {
+        return this.engine.process(this.frame, CANNY);
+    }
+
+    /**
+     * Canny on a frame half as wide and high, with the edges scaled back up
+     */
+    @Benchmark
+    public Mat pyramidCanny() {
+        return this.engine.process(this.frame, PYRAMID_CANNY);
+    }
+
+    @Benchmark
+    public Mat backgroundRemoval(BackgroundRemoval settings) {
+        return this.engine.process(this.frame, settings.params);
+    }
+
+    /**
+     * The background removal without blur, dilation and erosion, where the
+     * fused backend writes the output in a single pass after the histogram
+     */
+    @Benchmark
+    public Mat backgroundRemovalNoMorphology(BackgroundRemoval settings) {
+        return this.engine.process(this.frame, settings.noMorphology);
+    }
+
+    /**
+     * The adaptive background removal, with the MOG2 model updated on every
+     * frame
+     */
+    @Benchmark
+    public Mat backgroundSubtraction() {
+        return this.engine.process(this.frame, BACKGROUND_SUBTRACTION);
+    }
+
+    @Benchmark
+    public double histAverage() {
+        return this.engine.getHistAverage();
+    }
+
+    /**
+     * The conversion done by mat2Image (painting the image needs a running
+     * JavaFX toolkit and is not measured)
+     */
+    @Benchmark
+    public void mat2Image() {
+        this.renderer.prepare(this.frame);
+    }
+
+    /**
+     * The PNG encoding formerly done by mat2Image for every frame, as a
+     * reference
+     */
+    @Benchmark
+    public BytePointer pngEncode() {
+        imencode(".png", this.frame, this.encoded);
+        return this.encoded;
+    }
+
+    /**
+     * The settings of the background removal benchmarks only, so that the
+     * other ones do not run once per backend
+     */
+    @State(Scope.Thread)
+    public static class BackgroundRemoval {
+
+        // the implementation of the background removal, and the downscale
+        // of the mask after a slash (OPENCV backend only)
+        @Param({"OPENCV", "OPENCV/2", "OPENCV/4", "JAVA", "FUSED", "PARALLEL"})
+        public String backend;
+
+        SegmentationParams params;
+        SegmentationParams noMorphology;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            String[] parts = this.backend.split("/");
+            this.params = SegmentationParams.builder()
+                    .mode(SegmentationMode.BACKGROUND_REMOVAL)
+                    .backend(SegmentationBackend.valueOf(parts[0]))
+                    .maskDownscale(parts.length > 1 ? Integer.parseInt(parts[1]) : 1)
+                    .build();
+            this.noMorphology = this.params.toBuilder().morphology(false).build();
+        }
+    }
+
+    private static Mat loadResource(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = SegmentationBenchmark.class.getResourceAsStream(name)) {
+            if (in == null)
+                throw new IOException("Missing resource " + name);
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; )
+                bytes.write(buffer, 0, n);
+        }
+
+        BytePointer data = new BytePointer(bytes.toByteArray());
+        Mat buf = new Mat(1, (int) data.capacity(), CV_8UC1, data);
+        Mat image = imdecode(buf, IMREAD_COLOR);
+        buf.deallocate();
+        data.deallocate();
+        return image;
+    }
+
+}
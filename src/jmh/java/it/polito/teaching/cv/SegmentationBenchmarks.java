@@ -0,0 +1,34 @@
+package it.polito.teaching.cv;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the segmentation benchmarks with the GC and native memory profilers.
+ * The usual JMH options can be given on the command line, e.g.
+ * <code>-p resolution=1080p</code> or a benchmark name filter.
+ *
+ * @since 1.6
+ */
+public class SegmentationBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty())
+            builder.include(SegmentationBenchmark.class.getSimpleName());
+
+        Options options = builder
+                .addProfiler(GCProfiler.class)
+                .addProfiler(NativeMemoryProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
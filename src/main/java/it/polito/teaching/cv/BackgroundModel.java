@@ -0,0 +1,34 @@
+package it.polito.teaching.cv;
+
+/**
+ * The statistical model of the background learned by
+ * {@link SegmentationMode#BACKGROUND_SUBTRACTION}.
+ *
+ * @since 1.6
+ */
+public enum BackgroundModel {
+
+    /**
+     * A mixture of Gaussians per pixel (OpenCV BackgroundSubtractorMOG2)
+     */
+    MOG2,
+
+    /**
+     * The K nearest neighbours among the recent samples of each pixel
+     * (OpenCV BackgroundSubtractorKNN)
+     */
+    KNN;
+
+    /**
+     * Get the model with the given name, ignoring case
+     *
+     * @param name         the model name, possibly <code>null</code>
+     * @param defaultValue the model returned for a missing name
+     * @return the corresponding model
+     */
+    public static BackgroundModel parse(String name, BackgroundModel defaultValue) {
+        if (name == null || name.trim().isEmpty())
+            return defaultValue;
+        return valueOf(name.trim().toUpperCase());
+    }
+}
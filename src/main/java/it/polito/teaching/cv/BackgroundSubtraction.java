@@ -0,0 +1,100 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_video.BackgroundSubtractor;
+
+import static org.bytedeco.javacpp.opencv_video.createBackgroundSubtractorKNN;
+import static org.bytedeco.javacpp.opencv_video.createBackgroundSubtractorMOG2;
+
+/**
+ * The adaptive background of {@link SegmentationMode#BACKGROUND_SUBTRACTION}:
+ * an OpenCV background subtractor learning, pixel by pixel, the colors seen
+ * over the last {@link SegmentationParams#getBackgroundHistory()} frames, so
+ * that textured or slowly changing backgrounds are removed too.
+ * <p>
+ * The model is created for one resolution, and its memory is allocated by
+ * the first frame; it is kept as long as the resolution, the kind of model
+ * and its history stay the same. The model can be updated only every
+ * {@link SegmentationParams#getModelUpdateEvery()} frames: the frames in
+ * between are classified with a learning rate of 0, which leaves the model
+ * as it is. Shadows are not detected, so the mask is either 0 or 255.
+ * <p>
+ * An instance keeps the state of one video stream and must be used by one
+ * thread at a time.
+ *
+ * @since 1.6
+ */
+class BackgroundSubtraction {
+
+    // the thresholds of OpenCV defaults, on the squared distance of a pixel
+    // from the model
+    private static final double MOG2_VAR_THRESHOLD = 16;
+    private static final double KNN_DIST2_THRESHOLD = 400;
+
+    private BackgroundSubtractor subtractor;
+    // what the model has been created for
+    private BackgroundModel model;
+    private int history = -1;
+    private int rows = -1;
+    private int cols = -1;
+    private int type = -1;
+    private long frames;
+
+    /**
+     * Classify the pixels of a frame as foreground (255) or background (0),
+     * updating the model if due
+     *
+     * @param frame  the current frame
+     * @param mask   where to write the mask, of the size of the frame
+     * @param params the model and its update settings
+     * @return <code>true</code> if the model has been updated
+     */
+    boolean apply(Mat frame, Mat mask, SegmentationParams params) {
+        this.ensure(frame, params.getBackgroundModel(), params.getBackgroundHistory());
+
+        boolean update = this.frames++ % params.getModelUpdateEvery() == 0;
+        this.subtractor.apply(frame, mask, update ? params.getLearningRate() : 0);
+        return update;
+    }
+
+    /**
+     * Forget the learned background, e.g., when the source changes
+     */
+    void reset() {
+        this.close();
+    }
+
+    /**
+     * Release the native memory of the model
+     */
+    void close() {
+        if (this.subtractor != null) {
+            this.subtractor.deallocate();
+            this.subtractor = null;
+        }
+        this.model = null;
+        this.history = this.rows = this.cols = this.type = -1;
+        this.frames = 0;
+    }
+
+    /**
+     * Create the model, again only if the frames or its settings changed
+     */
+    private void ensure(Mat frame, BackgroundModel model, int history) {
+        if (this.subtractor != null && model == this.model && history == this.history
+                && frame.rows() == this.rows && frame.cols() == this.cols && frame.type() == this.type)
+            return;
+
+        this.close();
+        this.model = model;
+        this.history = history;
+        this.rows = frame.rows();
+        this.cols = frame.cols();
+        this.type = frame.type();
+        if (model == BackgroundModel.KNN)
+            this.subtractor = createBackgroundSubtractorKNN(history, KNN_DIST2_THRESHOLD, false);
+        else
+            this.subtractor = createBackgroundSubtractorMOG2(history, MOG2_VAR_THRESHOLD, false);
+    }
+
+}
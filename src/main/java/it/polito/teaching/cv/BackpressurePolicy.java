@@ -0,0 +1,40 @@
+package it.polito.teaching.cv;
+
+/**
+ * What the {@link FrameRing} does with a newly acquired frame when all its
+ * slots are waiting to be processed.
+ *
+ * @since 1.6
+ */
+public enum BackpressurePolicy {
+
+    /**
+     * Overwrite the oldest queued frame: the latest frame always wins and the
+     * latency stays bounded by the ring capacity
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new frame and keep the queued ones
+     */
+    DROP_NEWEST,
+
+    /**
+     * Make the grabber wait until the processing catches up: no frame is
+     * lost in the ring, but the source (or its driver) has to buffer them
+     */
+    BLOCK;
+
+    /**
+     * Get the policy with the given name, ignoring case
+     *
+     * @param name         the policy name, e.g. <code>drop-oldest</code>
+     * @param defaultValue the policy to use when no name is given
+     * @return the corresponding policy
+     */
+    public static BackpressurePolicy parse(String name, BackpressurePolicy defaultValue) {
+        if (name == null || name.trim().isEmpty())
+            return defaultValue;
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,89 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * A frame converted to BGRA, the pixel format written into JavaFX images,
+ * kept in a reused native buffer.
+ *
+ * @since 1.6
+ */
+class BgraFrame {
+
+    // the frame converted to BGRA
+    private final Mat bgra = new Mat();
+    // the memory of the BGRA frame
+    private ByteBuffer pixels;
+    private int width;
+    private int height;
+    // when the original frame has been acquired
+    private long timestamp;
+
+    /**
+     * Convert a frame (gray, BGR or BGRA) to BGRA, allocating memory only if
+     * its size changed
+     *
+     * @param frame the {@link Mat} representing the current frame
+     */
+    void convertFrom(Mat frame) {
+        switch (frame.channels()) {
+            case 1:
+                cvtColor(frame, this.bgra, COLOR_GRAY2BGRA);
+                break;
+            case 4:
+                frame.copyTo(this.bgra);
+                break;
+            default:
+                cvtColor(frame, this.bgra, COLOR_BGR2BGRA);
+                break;
+        }
+
+        // the buffer is reallocated only when the size changes
+        if (this.pixels == null || this.bgra.cols() != this.width || this.bgra.rows() != this.height) {
+            this.width = this.bgra.cols();
+            this.height = this.bgra.rows();
+            this.pixels = this.bgra.createBuffer();
+        }
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the frame has been
+     * acquired
+     */
+    long timestamp() {
+        return this.timestamp;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the BGRA pixels, 4 bytes each, with no padding between rows
+     */
+    ByteBuffer pixels() {
+        return this.pixels;
+    }
+
+    int width() {
+        return this.width;
+    }
+
+    int height() {
+        return this.height;
+    }
+
+    /**
+     * Release the native buffer
+     */
+    void close() {
+        this.bgra.release();
+        this.pixels = null;
+        this.width = this.height = 0;
+    }
+
+}
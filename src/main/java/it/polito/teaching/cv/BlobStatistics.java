@@ -0,0 +1,179 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32S;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The foreground objects (blobs) of the mask of the background removal: the
+ * 8-connected components of the mask, with their area, bounding box and
+ * centroid.
+ * <p>
+ * The values are kept in primitive arrays, indexed by blob, which grow when
+ * a frame has more blobs than any previous one; no object is allocated per
+ * blob. Blobs smaller than a minimum area can be removed from the mask, as
+ * a cleanup of the noise cheaper than erosion. The statistics belong to the
+ * engine that found them and are overwritten by its next frame.
+ *
+ * @since 1.6
+ */
+public class BlobStatistics {
+
+    private int count;
+    private int[] area = new int[16];
+    private int[] left = new int[16];
+    private int[] top = new int[16];
+    private int[] width = new int[16];
+    private int[] height = new int[16];
+    private double[] centroidX = new double[16];
+    private double[] centroidY = new double[16];
+
+    /**
+     * Find the blobs of a mask and, if asked, remove the small ones from it
+     *
+     * @param ws      the workspace holding the label buffers, of the size of
+     *                the mask
+     * @param mask    the mask, 0 for the background
+     * @param minArea the area, in pixels, below which blobs are removed (0 to
+     *                keep them all)
+     */
+    void find(SegmentationWorkspace ws, Mat mask, int minArea) {
+        int labels = connectedComponentsWithStats(mask, ws.labels, ws.blobStats, ws.blobCentroids, 8, CV_32S);
+        IntBuffer stats = ws.blobStats.createBuffer();
+        DoubleBuffer centroids = ws.blobCentroids.createBuffer();
+        this.ensureCapacity(labels - 1);
+
+        ByteBuffer pixels = null;
+        this.count = 0;
+        // label 0 is the background
+        for (int label = 1; label < labels; label++) {
+            int s = label * CC_STAT_MAX;
+            int area = stats.get(s + CC_STAT_AREA);
+            if (area < minArea) {
+                if (pixels == null)
+                    pixels = mask.createBuffer();
+                erase(ws.labelValues(), pixels, mask.cols(), label, stats.get(s + CC_STAT_LEFT),
+                        stats.get(s + CC_STAT_TOP), stats.get(s + CC_STAT_WIDTH), stats.get(s + CC_STAT_HEIGHT));
+                continue;
+            }
+
+            int i = this.count++;
+            this.area[i] = area;
+            this.left[i] = stats.get(s + CC_STAT_LEFT);
+            this.top[i] = stats.get(s + CC_STAT_TOP);
+            this.width[i] = stats.get(s + CC_STAT_WIDTH);
+            this.height[i] = stats.get(s + CC_STAT_HEIGHT);
+            this.centroidX[i] = centroids.get(label * 2);
+            this.centroidY[i] = centroids.get(label * 2 + 1);
+        }
+    }
+
+    /**
+     * Forget the blobs, e.g., for a frame where they are not searched
+     */
+    void clear() {
+        this.count = 0;
+    }
+
+    /**
+     * @return the number of blobs
+     */
+    public int count() {
+        return this.count;
+    }
+
+    /**
+     * @param i the index of the blob, from 0 to {@link #count()} excluded
+     * @return the number of pixels of the blob
+     */
+    public int area(int i) {
+        return this.area[this.check(i)];
+    }
+
+    /**
+     * @param i the index of the blob
+     * @return the leftmost column of its bounding box
+     */
+    public int left(int i) {
+        return this.left[this.check(i)];
+    }
+
+    /**
+     * @param i the index of the blob
+     * @return the topmost row of its bounding box
+     */
+    public int top(int i) {
+        return this.top[this.check(i)];
+    }
+
+    /**
+     * @param i the index of the blob
+     * @return the width of its bounding box
+     */
+    public int width(int i) {
+        return this.width[this.check(i)];
+    }
+
+    /**
+     * @param i the index of the blob
+     * @return the height of its bounding box
+     */
+    public int height(int i) {
+        return this.height[this.check(i)];
+    }
+
+    /**
+     * @param i the index of the blob
+     * @return the column of its centroid
+     */
+    public double centroidX(int i) {
+        return this.centroidX[this.check(i)];
+    }
+
+    /**
+     * @param i the index of the blob
+     * @return the row of its centroid
+     */
+    public double centroidY(int i) {
+        return this.centroidY[this.check(i)];
+    }
+
+    private int check(int i) {
+        if (i < 0 || i >= this.count)
+            throw new IndexOutOfBoundsException("Blob " + i + " of " + this.count);
+        return i;
+    }
+
+    private void ensureCapacity(int blobs) {
+        if (blobs <= this.area.length)
+            return;
+
+        int capacity = Math.max(blobs, this.area.length * 2);
+        this.area = new int[capacity];
+        this.left = new int[capacity];
+        this.top = new int[capacity];
+        this.width = new int[capacity];
+        this.height = new int[capacity];
+        this.centroidX = new double[capacity];
+        this.centroidY = new double[capacity];
+    }
+
+    /**
+     * Clear the pixels of a label within its bounding box
+     */
+    private static void erase(IntBuffer labels, ByteBuffer mask, int cols, int label,
+                              int left, int top, int width, int height) {
+        for (int y = top; y < top + height; y++) {
+            int row = y * cols;
+            for (int x = left; x < left + width; x++)
+                if (labels.get(row + x) == label)
+                    mask.put(row + x, (byte) 0);
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package it.polito.teaching.cv;
+
+/**
+ * Frames acquired from a camera, identified by its device index.
+ *
+ * @since 1.6
+ */
+public class CameraFrameSource extends CaptureFrameSource {
+
+    private final int device;
+
+    /**
+     * @param device the index of the camera (0 for the default one)
+     */
+    public CameraFrameSource(int device) {
+        this.device = device;
+    }
+
+    @Override
+    public boolean open() {
+        return this.capture.open(this.device);
+    }
+
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "camera " + this.device;
+    }
+
+}
@@ -0,0 +1,180 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * The thresholds of Canny derived from the median gray level of the frame,
+ * instead of the fixed one of the slider: the lower threshold is
+ * {@value #SIGMA} below the median, the upper one {@value #SIGMA} above it.
+ * <p>
+ * The median is found from the histogram of one pixel every
+ * {@value #STRIDE} along both axes, and is kept for
+ * {@link SegmentationParams#getCannyUpdateEvery()} frames, unless a coarse
+ * histogram of the gray levels moves away from the one of the last update by
+ * more than {@link SegmentationParams#getSceneChangeThreshold()} (a change
+ * of scene). The median, and the updates, are reported as a {@link Gauge}
+ * of the {@link PipelineMetrics}.
+ * <p>
+ * An instance keeps the state of one video stream and must be used by one
+ * thread at a time.
+ *
+ * @since 1.6
+ */
+class CannyThresholds {
+
+    /**
+     * The distance of the thresholds from the median, as a fraction of it
+     */
+    static final double SIGMA = 0.33;
+    /**
+     * The distance between the pixels sampled for the median
+     */
+    static final int STRIDE = 4;
+
+    // the coarse histogram of the scene change detector: bins of 16 gray
+    // levels, sampling pixels 16 apart
+    private static final int SCENE_BINS = 16;
+    private static final int SCENE_STRIDE = 16;
+
+    private final PipelineMetrics metrics;
+
+    // one sampled row of gray pixels
+    private byte[] row = new byte[0];
+    private final int[] histogram = new int[256];
+    // the changes of scene, on the coarse histogram of the gray levels
+    private final SceneChangeDetector sceneChanges = new SceneChangeDetector(SCENE_BINS) {
+
+        @Override
+        void histogram(Mat gray, SegmentationParams params, double[] bins) {
+            coarseHistogram(gray, bins);
+        }
+    };
+
+    // the cached median, NaN before the first update
+    private double median = Double.NaN;
+    private double low;
+    private double high;
+    private long frames;
+    private long lastUpdate;
+
+    /**
+     * @param metrics where to report the median and its updates
+     */
+    CannyThresholds(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Find the median gray level of a frame, if due
+     *
+     * @param gray   the current frame, in grayscale
+     * @param params the update settings
+     */
+    void update(Mat gray, SegmentationParams params) {
+        long index = this.frames++;
+        boolean first = Double.isNaN(this.median);
+        boolean due = first || index - this.lastUpdate >= params.getCannyUpdateEvery();
+        boolean sceneChange = false;
+        if (!first && params.getSceneChangeThreshold() > 0)
+            sceneChange = this.sceneChanges.changed(gray, params);
+        if (!due && !sceneChange)
+            return;
+
+        this.median = this.median(gray);
+        this.low = Math.max(1, (1 - SIGMA) * this.median);
+        this.high = Math.max(this.low, Math.min(255, (1 + SIGMA) * this.median));
+        this.lastUpdate = index;
+
+        // the reference of the next changes of scene
+        if (params.getSceneChangeThreshold() > 0)
+            this.sceneChanges.update(gray, params, !first);
+
+        this.metrics.setGauge(Gauge.CANNY_MEDIAN, this.median);
+        this.metrics.addToGauge(Gauge.CANNY_UPDATES, 1);
+    }
+
+    /**
+     * @return the lower threshold of the detector
+     */
+    double low() {
+        return this.low;
+    }
+
+    /**
+     * @return the upper threshold of the detector
+     */
+    double high() {
+        return this.high;
+    }
+
+    /**
+     * Forget the median, e.g., when the source changes
+     */
+    void reset() {
+        this.median = Double.NaN;
+        this.frames = 0;
+        this.lastUpdate = 0;
+    }
+
+    /**
+     * @return the median of the sampled gray levels
+     */
+    private double median(Mat gray) {
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        long sampled = this.sample(gray, STRIDE, histogram, 1);
+
+        long half = (sampled + 1) / 2;
+        long count = 0;
+        for (int v = 0; v < 256; v++) {
+            count += histogram[v];
+            if (count >= half)
+                return v;
+        }
+        return 255;
+    }
+
+    /**
+     * Compute the coarse histogram of the sampled gray levels
+     */
+    private void coarseHistogram(Mat gray, double[] bins) {
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0, SCENE_BINS, 0);
+        long sampled = this.sample(gray, SCENE_STRIDE, histogram, 256 / SCENE_BINS);
+        for (int i = 0; i < SCENE_BINS; i++)
+            bins[i] = (double) histogram[i] / sampled;
+    }
+
+    /**
+     * Count the gray levels of the sampled pixels
+     *
+     * @param binWidth the number of gray levels per bin
+     * @return the number of sampled pixels
+     */
+    private long sample(Mat gray, int stride, int[] histogram, int binWidth) {
+        int rows = gray.rows();
+        int cols = gray.cols();
+        if (this.row.length < cols)
+            this.row = new byte[cols];
+
+        byte[] row = this.row;
+        BytePointer data = gray.isContinuous() ? gray.data() : null;
+        long sampled = 0;
+        for (int y = 0; y < rows; y += stride) {
+            if (data != null)
+                data.position((long) y * cols).get(row, 0, cols);
+            else
+                gray.ptr(y).get(row, 0, cols);
+
+            for (int x = 0; x < cols; x += stride) {
+                histogram[(row[x] & 0xFF) / binWidth]++;
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+}
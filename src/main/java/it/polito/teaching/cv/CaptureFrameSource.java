@@ -0,0 +1,48 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_videoio.VideoCapture;
+
+import static org.bytedeco.javacpp.opencv_videoio.*;
+
+/**
+ * The common part of the sources backed by an OpenCV {@link VideoCapture}.
+ *
+ * @since 1.6
+ */
+abstract class CaptureFrameSource implements FrameSource {
+
+    // the OpenCV object that performs the video capture
+    protected final VideoCapture capture = new VideoCapture();
+
+    @Override
+    public boolean isOpened() {
+        return this.capture.isOpened();
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        return this.capture.read(frame) && !frame.empty();
+    }
+
+    @Override
+    public double frameRate() {
+        return this.capture.get(CAP_PROP_FPS);
+    }
+
+    @Override
+    public int width() {
+        return (int) this.capture.get(CAP_PROP_FRAME_WIDTH);
+    }
+
+    @Override
+    public int height() {
+        return (int) this.capture.get(CAP_PROP_FRAME_HEIGHT);
+    }
+
+    @Override
+    public void close() {
+        this.capture.release();
+    }
+
+}
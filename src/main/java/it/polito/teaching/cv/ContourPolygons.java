@@ -0,0 +1,139 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The outlines of the foreground objects of a mask, as simplified polygons
+ * encoded in a compact binary record: for consumers that need the objects
+ * but not the pixels of the segmented frame.
+ * <p>
+ * The outer contours of the mask are simplified by the Douglas-Peucker
+ * algorithm (<code>approxPolyDP</code>), so that no point of a contour is
+ * farther than epsilon pixels from its polygon. The record of a frame is a
+ * sequence of unsigned LEB128 varints (7 bits per byte, lowest first, the
+ * high bit set on all bytes but the last):
+ * <pre>
+ * record  = polygons, polygon...
+ * polygon = points, x, y, (dx, dy)...
+ * </pre>
+ * where the first point is absolute and the others are the difference from
+ * the previous one, zigzag encoded (<code>(d &lt;&lt; 1) ^ (d &gt;&gt; 31)</code>).
+ * The record is kept in a byte array that grows when needed, and is
+ * overwritten by the next frame.
+ *
+ * @since 1.6
+ */
+public class ContourPolygons {
+
+    private byte[] record = new byte[1024];
+    private int size;
+    private int count;
+    private int points;
+
+    /**
+     * Find and encode the polygons of a mask
+     *
+     * @param ws      the workspace holding the contour buffers
+     * @param mask    the mask, 0 for the background; it may be modified
+     * @param epsilon the largest distance, in pixels, between a contour and
+     *                its polygon
+     */
+    void find(SegmentationWorkspace ws, Mat mask, double epsilon) {
+        findContours(mask, ws.contours, RETR_EXTERNAL, CHAIN_APPROX_SIMPLE);
+        this.clear();
+        this.count = (int) ws.contours.size();
+        this.writeVarint(this.count);
+
+        for (int i = 0; i < this.count; i++) {
+            Mat contour = ws.contours.get(i);
+            try {
+                approxPolyDP(contour, ws.polygon, epsilon, true);
+            } finally {
+                contour.deallocate();
+            }
+
+            // the points are pairs of ints
+            int points = ws.polygon.rows() * ws.polygon.cols();
+            IntBuffer xy = ws.polygon.createBuffer();
+            this.writeVarint(points);
+            int x = 0;
+            int y = 0;
+            for (int p = 0; p < points; p++) {
+                int nextX = xy.get(2 * p);
+                int nextY = xy.get(2 * p + 1);
+                if (p == 0) {
+                    this.writeVarint(nextX);
+                    this.writeVarint(nextY);
+                } else {
+                    this.writeVarint(zigzag(nextX - x));
+                    this.writeVarint(zigzag(nextY - y));
+                }
+                x = nextX;
+                y = nextY;
+            }
+            this.points += points;
+        }
+    }
+
+    /**
+     * Forget the polygons, e.g., for a frame where they are not searched
+     */
+    void clear() {
+        this.size = 0;
+        this.count = 0;
+        this.points = 0;
+    }
+
+    /**
+     * @return the number of polygons
+     */
+    public int count() {
+        return this.count;
+    }
+
+    /**
+     * @return the total number of points of the polygons
+     */
+    public int points() {
+        return this.points;
+    }
+
+    /**
+     * @return the size of the encoded record, in bytes
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Write the encoded record
+     *
+     * @param out where to write it
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.record, 0, this.size);
+    }
+
+    private void writeVarint(int value) {
+        if (this.size + 5 > this.record.length)
+            this.record = Arrays.copyOf(this.record, this.record.length * 2);
+        while ((value & ~0x7F) != 0) {
+            this.record[this.size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.record[this.size++] = (byte) value;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+}
@@ -0,0 +1,476 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The OpenCV segmentation of {@link SegmentationEngine}, processed again
+ * only where the frame changed: for scenes that are mostly static.
+ * <p>
+ * The frame is divided into square tiles, and each tile is compared with
+ * the pixels it was last processed from: a tile whose gray level changed by
+ * more than {@value #NOISE_LEVEL} somewhere is processed again, together
+ * with its neighbours (whose halo it lies in); the other tiles keep their
+ * output from the previous frames. A tile is processed on its pixels plus
+ * {@value #HALO} pixels on each side, in a workspace of that size, as the
+ * stripes of {@link ParallelBackgroundRemoval}:
+ * <ul>
+ * <li>the background removal of the changed tiles is the same as over the
+ * whole frame; its threshold is the average Hue of the tiles as last
+ * processed, and every tile is processed again when its integer part (the
+ * threshold actually applied) changes;</li>
+ * <li>the hysteresis of Canny can follow an edge farther than the halo, so
+ * an edge crossing a changed tile may end a few pixels early.</li>
+ * </ul>
+ * Any change of the settings processes the whole frame again. The views of
+ * the tiles in the frame are kept per frame buffer, see {@link FrameViews}.
+ * An instance must be used by one thread at a time.
+ *
+ * @since 1.6
+ */
+class DirtyTileProcessor {
+
+    /**
+     * The pixels each tile needs on each side of its own
+     */
+    static final int HALO = ParallelBackgroundRemoval.HALO;
+    /**
+     * The difference of gray level, between 0 and 255, below which a pixel
+     * is considered unchanged (sensor noise)
+     */
+    static final int NOISE_LEVEL = 10;
+
+    private Tile[] tiles = new Tile[0];
+    // the views of the tiles in the frames, and the number of frame buffers
+    // they are kept for
+    private FrameViews frameViews;
+    private final int frameBuffers;
+    // the buffers shared by the tiles of the same size and position in
+    // their region
+    private final Map<String, Shape> shapes = new HashMap<>();
+    private int tilesX;
+    private int tilesY;
+
+    // the frames and tiles the buffers are laid out for
+    private int rows = -1;
+    private int cols = -1;
+    private int type = -1;
+    private int tileSize = -1;
+
+    // the pixels each tile was last processed from, their Hue or gray
+    // planes, and the output of the tiles
+    private final Mat reference = new Mat();
+    private final Mat hsv = new Mat();
+    private final Mat hue = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat output = new Mat();
+    private final Mat diff = new Mat();
+    private final Mat diffGray = new Mat();
+
+    // what the output has been computed with (no mode: nothing yet)
+    private SegmentationMode mode;
+    private double cannyThreshold;
+    private boolean inverse;
+    private boolean morphology;
+    private boolean exactHue;
+    private int threshold = -1;
+
+    // the Hue histogram of the whole frame
+    private final float[] histogram = new float[180];
+    // the tiles to process in the current frame
+    private int dirty;
+
+    /**
+     * @param frameBuffers the number of frame buffers the frames come from
+     */
+    DirtyTileProcessor(int frameBuffers) {
+        this.frameBuffers = frameBuffers;
+    }
+
+    /**
+     * Compare a frame with the pixels each tile was last processed from,
+     * and choose the tiles to process again
+     *
+     * @param frame  the current frame, in BGR
+     * @param params the settings of the frame, with a positive
+     *               {@link SegmentationParams#getTileSize()}
+     */
+    void diff(Mat frame, SegmentationParams params) {
+        boolean changed = this.layout(frame, params.getTileSize());
+        changed |= params.getMode() != this.mode
+                || params.isInverse() != this.inverse
+                || params.isMorphology() != this.morphology
+                || params.isExactHue() != this.exactHue
+                || params.getCannyThreshold() != this.cannyThreshold;
+        this.mode = params.getMode();
+        this.inverse = params.isInverse();
+        this.morphology = params.isMorphology();
+        this.exactHue = params.isExactHue();
+        this.cannyThreshold = params.getCannyThreshold();
+        if (changed) {
+            this.threshold = -1;
+            this.markAll();
+            return;
+        }
+
+        absdiff(frame, this.reference, this.diff);
+        cvtColor(this.diff, this.diffGray, COLOR_BGR2GRAY);
+        threshold(this.diffGray, this.diffGray, NOISE_LEVEL, 255, THRESH_BINARY);
+        for (Tile tile : this.tiles)
+            tile.changed = countNonZero(tile.coreDiff) > 0;
+
+        // a tile also depends on the halo taken from its neighbours
+        this.dirty = 0;
+        for (int y = 0; y < this.tilesY; y++) {
+            for (int x = 0; x < this.tilesX; x++) {
+                boolean dirty = false;
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(this.tilesY - 1, y + 1) && !dirty; ny++)
+                    for (int nx = Math.max(0, x - 1); nx <= Math.min(this.tilesX - 1, x + 1) && !dirty; nx++)
+                        dirty = this.tiles[ny * this.tilesX + nx].changed;
+                this.tiles[y * this.tilesX + x].dirty = dirty;
+                if (dirty)
+                    this.dirty++;
+            }
+        }
+    }
+
+    /**
+     * Convert the changed tiles to HSV and, if asked, compute their Hue
+     * histograms
+     *
+     * @param frame            the current frame, as given to
+     *                         {@link #diff(Mat, SegmentationParams)}
+     * @param computeHistogram whether the histogram is needed
+     */
+    void convertToHue(Mat frame, boolean computeHistogram) {
+        Mat[] views = this.frameViews.of(frame);
+        for (Tile tile : this.tiles)
+            if (tile.dirty)
+                this.convertToHue(views, tile, computeHistogram);
+    }
+
+    /**
+     * Get the average Hue of the tiles as last processed, with the same
+     * arithmetic as {@link SegmentationEngine#getHistAverage()}
+     *
+     * @return the average Hue value
+     */
+    double histAverage() {
+        float[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        for (Tile tile : this.tiles)
+            for (int h = 0; h < 180; h++)
+                histogram[h] += tile.histogram[h];
+
+        double average = 0.0;
+        for (int h = 0; h < 180; h++)
+            average += (histogram[h] * h);
+        return average / this.rows / this.cols;
+    }
+
+    /**
+     * Threshold and smooth the mask of the tiles to process, and compose
+     * their output; all the tiles if the threshold applied changed
+     *
+     * @param frame       the current frame, as given to
+     *                    {@link #diff(Mat, SegmentationParams)}
+     * @param threshValue the threshold
+     * @param inverse     whether to inverse the threshold
+     * @param morphology  whether to smooth the mask
+     */
+    void segment(Mat frame, double threshValue, boolean inverse, boolean morphology) {
+        // 8-bit images are compared with the integer part of the threshold
+        Mat[] views = this.frameViews.of(frame);
+        int applied = (int) Math.floor(threshValue);
+        if (applied != this.threshold) {
+            this.threshold = applied;
+            for (Tile tile : this.tiles) {
+                if (!tile.dirty) {
+                    this.convertToHue(views, tile, this.exactHue);
+                    tile.dirty = true;
+                }
+            }
+            this.dirty = this.tiles.length;
+        }
+
+        int threshType = inverse ? THRESH_BINARY : THRESH_BINARY_INV;
+        for (Tile tile : this.tiles) {
+            if (!tile.dirty)
+                continue;
+
+            SegmentationWorkspace ws = tile.shape.ws;
+            Mat thresholdImg = ws.thresholdImg;
+            threshold(tile.regionHue, thresholdImg, threshValue, 179.0, threshType);
+            if (morphology) {
+                blur(thresholdImg, thresholdImg, ws.blurSize);
+                dilate(thresholdImg, thresholdImg, ws.defaultKernel, ws.defaultAnchor, 1, BORDER_CONSTANT, ws.black);
+                erode(thresholdImg, thresholdImg, ws.defaultKernel, ws.defaultAnchor, 3, BORDER_CONSTANT, ws.black);
+                threshold(thresholdImg, thresholdImg, threshValue, 179.0, THRESH_BINARY);
+            }
+
+            tile.coreOutput.put(ws.white);
+            this.compose(views, tile, tile.shape.coreMask);
+        }
+    }
+
+    /**
+     * Apply Canny to the tiles to process, and compose their output
+     *
+     * @param frame     the current frame, as given to
+     *                  {@link #diff(Mat, SegmentationParams)}
+     * @param threshold the lower threshold of the detector
+     */
+    void canny(Mat frame, double threshold) {
+        Mat[] views = this.frameViews.of(frame);
+        for (Tile tile : this.tiles)
+            if (tile.dirty)
+                cvtColor(views[tile.index], tile.coreGray, COLOR_BGR2GRAY);
+
+        for (Tile tile : this.tiles) {
+            if (!tile.dirty)
+                continue;
+
+            SegmentationWorkspace ws = tile.shape.ws;
+            Mat detectedEdges = ws.detectedEdges;
+            blur(tile.regionGray, detectedEdges, ws.cannyBlurSize);
+            Canny(detectedEdges, detectedEdges, threshold, threshold * 3);
+
+            tile.coreOutput.put(ws.black);
+            this.compose(views, tile, tile.shape.coreEdges);
+        }
+    }
+
+    /**
+     * @return the output of all the tiles, overwritten by the next frame
+     */
+    Mat output() {
+        return this.output;
+    }
+
+    /**
+     * @return the fraction of the tiles processed in the current frame
+     */
+    double dirtyFraction() {
+        return this.tiles.length == 0 ? 0 : (double) this.dirty / this.tiles.length;
+    }
+
+    /**
+     * Forget the previous frames, e.g., when the source changes: the next
+     * frame is processed entirely
+     */
+    void reset() {
+        this.mode = null;
+    }
+
+    /**
+     * Release the native memory of all the tiles. The next frame is
+     * processed entirely.
+     */
+    void close() {
+        for (Tile tile : this.tiles)
+            tile.close();
+        for (Shape shape : this.shapes.values())
+            shape.close();
+        if (this.frameViews != null) {
+            this.frameViews.close();
+            this.frameViews = null;
+        }
+        this.tiles = new Tile[0];
+        this.shapes.clear();
+        this.rows = this.cols = this.type = this.tileSize = -1;
+        this.mode = null;
+        this.reference.release();
+        this.hsv.release();
+        this.hue.release();
+        this.gray.release();
+        this.output.release();
+        this.diff.release();
+        this.diffGray.release();
+    }
+
+    private void convertToHue(Mat[] views, Tile tile, boolean computeHistogram) {
+        cvtColor(views[tile.index], tile.coreHsv, COLOR_BGR2HSV);
+        extractChannel(tile.coreHsv, tile.coreHue, 0);
+        if (computeHistogram) {
+            SegmentationWorkspace ws = tile.shape.ws;
+            calcHist(tile.coreHueVector, ws.histChannels, ws.noMask, ws.histHue, ws.histSize, ws.histRanges);
+            FloatBuffer values = ws.histHueValues();
+            for (int h = 0; h < 180; h++)
+                tile.histogram[h] = values.get(h);
+        }
+    }
+
+    /**
+     * Copy the pixels of a tile selected by a mask to the output, and keep
+     * them as the reference of the next frames
+     */
+    private void compose(Mat[] views, Tile tile, Mat coreMask) {
+        Mat input = views[tile.index];
+        input.copyTo(tile.coreOutput, coreMask);
+        input.copyTo(tile.coreReference);
+    }
+
+    private void markAll() {
+        for (Tile tile : this.tiles)
+            tile.dirty = true;
+        this.dirty = this.tiles.length;
+    }
+
+    /**
+     * Split the frame into tiles, again only if its size or type, or the
+     * size of the tiles, changed
+     *
+     * @return <code>true</code> if the tiles have been laid out again
+     */
+    private boolean layout(Mat frame, int tileSize) {
+        if (frame.type() != CV_8UC3)
+            throw new IllegalArgumentException("The incremental processing needs BGR frames, not type " + frame.type());
+        if (frame.rows() == this.rows && frame.cols() == this.cols && frame.type() == this.type
+                && tileSize == this.tileSize)
+            return false;
+
+        this.close();
+        this.rows = frame.rows();
+        this.cols = frame.cols();
+        this.type = frame.type();
+        this.tileSize = tileSize;
+
+        this.reference.create(this.rows, this.cols, this.type);
+        this.hsv.create(this.rows, this.cols, CV_8UC3);
+        this.hue.create(this.rows, this.cols, CV_8UC1);
+        this.gray.create(this.rows, this.cols, CV_8UC1);
+        this.output.create(this.rows, this.cols, this.type);
+
+        this.tilesX = (this.cols + tileSize - 1) / tileSize;
+        this.tilesY = (this.rows + tileSize - 1) / tileSize;
+        this.tiles = new Tile[this.tilesX * this.tilesY];
+        Rect[] cores = new Rect[this.tiles.length];
+        for (int y = 0; y < this.tilesY; y++) {
+            for (int x = 0; x < this.tilesX; x++) {
+                Rect core = new Rect(x * tileSize, y * tileSize,
+                        Math.min(tileSize, this.cols - x * tileSize), Math.min(tileSize, this.rows - y * tileSize));
+                int left = Math.max(0, core.x() - HALO);
+                int top = Math.max(0, core.y() - HALO);
+                Rect region = new Rect(left, top,
+                        Math.min(this.cols, core.x() + core.width() + HALO) - left,
+                        Math.min(this.rows, core.y() + core.height() + HALO) - top);
+                int index = y * this.tilesX + x;
+                this.tiles[index] = new Tile(index, core, region, this.shape(frame, core, region));
+                cores[index] = core;
+            }
+        }
+        this.frameViews = new FrameViews(this.frameBuffers, cores);
+        return true;
+    }
+
+    /**
+     * Get the buffers of the tiles with the given core and region sizes and
+     * offset, allocated for the first of them
+     */
+    private Shape shape(Mat frame, Rect core, Rect region) {
+        String key = region.width() + "x" + region.height() + "+" + (core.x() - region.x()) + "+"
+                + (core.y() - region.y()) + ":" + core.width() + "x" + core.height();
+        Shape shape = this.shapes.get(key);
+        if (shape == null) {
+            shape = new Shape(frame, core, region);
+            this.shapes.put(key, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * A tile of the frame, and its views of the frame-sized buffers
+     */
+    private final class Tile {
+
+        // the position of the tile, its pixels and the ones it is processed
+        // on
+        final int index;
+        final Rect core;
+        final Rect region;
+        final Shape shape;
+        final Mat coreReference;
+        final Mat coreHsv;
+        final Mat coreHue;
+        final MatVector coreHueVector = new MatVector(1);
+        final Mat coreGray;
+        final Mat coreOutput;
+        final Mat coreDiff;
+        final Mat regionHue;
+        final Mat regionGray;
+        // the Hue histogram of the tile, as last processed
+        final float[] histogram = new float[180];
+        boolean changed;
+        boolean dirty;
+
+        Tile(int index, Rect core, Rect region, Shape shape) {
+            this.index = index;
+            this.core = core;
+            this.region = region;
+            this.shape = shape;
+            this.coreReference = new Mat(reference, core);
+            this.coreHsv = new Mat(hsv, core);
+            this.coreHue = new Mat(hue, core);
+            this.coreHueVector.put(0, this.coreHue);
+            this.coreGray = new Mat(gray, core);
+            this.coreOutput = new Mat(output, core);
+            this.coreDiff = new Mat(diffGray, core);
+            this.regionHue = new Mat(hue, region);
+            this.regionGray = new Mat(gray, region);
+        }
+
+        void close() {
+            this.coreReference.deallocate();
+            this.coreHsv.deallocate();
+            this.coreHue.deallocate();
+            this.coreHueVector.deallocate();
+            this.coreGray.deallocate();
+            this.coreOutput.deallocate();
+            this.coreDiff.deallocate();
+            this.regionHue.deallocate();
+            this.regionGray.deallocate();
+            this.core.deallocate();
+            this.region.deallocate();
+        }
+    }
+
+    /**
+     * The workspace of the tiles of the same size and position in their
+     * region, and its views of their own pixels
+     */
+    private static final class Shape {
+
+        final SegmentationWorkspace ws = new SegmentationWorkspace();
+        final Mat coreMask;
+        final Mat coreEdges;
+
+        Shape(Mat frame, Rect core, Rect region) {
+            Mat input = new Mat(frame, region);
+            try {
+                this.ws.ensure(input);
+            } finally {
+                input.deallocate();
+            }
+            Rect inner = new Rect(core.x() - region.x(), core.y() - region.y(), core.width(), core.height());
+            this.coreMask = new Mat(this.ws.thresholdImg, inner);
+            this.coreEdges = new Mat(this.ws.detectedEdges, inner);
+            inner.deallocate();
+        }
+
+        void close() {
+            this.coreMask.deallocate();
+            this.coreEdges.deallocate();
+            this.ws.close();
+        }
+    }
+
+}
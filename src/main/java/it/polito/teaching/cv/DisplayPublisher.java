@@ -0,0 +1,122 @@
+package it.polito.teaching.cv;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the processed frames over to the JavaFX Application Thread.
+ * <p>
+ * Frames are converted on the processing thread into one of three BGRA
+ * buffers (triple buffering): one is being filled, one holds the newest
+ * published frame and one is being painted. At most one
+ * {@link Platform#runLater(Runnable)} is pending at any time, and it always
+ * paints the newest frame: frames published faster than the screen can
+ * show them replace each other instead of queuing up, and are counted as
+ * coalesced. The conversion and the latency from capture to display are
+ * recorded as the {@link Stage#RENDER} and {@link Stage#END_TO_END} stages.
+ *
+ * @since 1.6
+ */
+public class DisplayPublisher {
+
+    // the flag marking a published frame not yet painted
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    private final BgraFrame[] frames = {new BgraFrame(), new BgraFrame(), new BgraFrame()};
+    // the frame filled by the processing thread
+    private int back = 0;
+    // the frame painted by the JavaFX thread
+    private int front = 1;
+    // the published frame, possibly FRESH
+    private final AtomicInteger middle = new AtomicInteger(2);
+    // whether a paint is already scheduled
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final ImageView view;
+    private final FrameCounters counters;
+    private final PipelineMetrics metrics;
+    private final FxFrameRenderer renderer = new FxFrameRenderer();
+    private final Runnable paintTask = new Runnable() {
+
+        @Override
+        public void run() {
+            paint();
+        }
+    };
+
+    /**
+     * @param view     where to show the frames
+     * @param counters where to count the displayed and coalesced frames
+     * @param metrics  where to record the rendering latency
+     */
+    public DisplayPublisher(ImageView view, FrameCounters counters, PipelineMetrics metrics) {
+        this.view = view;
+        this.counters = counters;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Publish a frame; to be called by a single processing thread. The frame
+     * is copied and can be reused as soon as this method returns.
+     *
+     * @param frame     the processed frame
+     * @param timestamp the {@link System#nanoTime()} at which the frame has
+     *                  been acquired
+     */
+    public void publish(Mat frame, long timestamp) {
+        long start = this.metrics.isEnabled() ? System.nanoTime() : 0;
+        BgraFrame converted = this.frames[this.back];
+        converted.convertFrom(frame);
+        converted.setTimestamp(timestamp);
+        this.metrics.record(Stage.RENDER, start);
+
+        // swap the filled frame with the published one
+        int previous = this.middle.getAndSet(this.back | FRESH);
+        if ((previous & FRESH) != 0)
+            this.counters.frameCoalesced();
+        this.back = previous & INDEX;
+
+        if (this.pending.compareAndSet(false, true))
+            Platform.runLater(this.paintTask);
+    }
+
+    /**
+     * Paint the newest published frame, on the JavaFX Application Thread
+     */
+    private void paint() {
+        // allow a new paint to be scheduled from now on, so that a frame
+        // published while painting is not missed
+        this.pending.set(false);
+        if (this.closed || (this.middle.get() & FRESH) == 0)
+            return;
+
+        // swap the painted frame with the published one
+        this.front = this.middle.getAndSet(this.front) & INDEX;
+
+        BgraFrame frame = this.frames[this.front];
+        Image image = this.renderer.paint(frame);
+        if (this.view.getImage() != image)
+            this.view.setImage(image);
+        this.counters.frameDisplayed();
+        if (this.metrics.isEnabled())
+            this.metrics.recordValue(Stage.END_TO_END, System.nanoTime() - frame.timestamp());
+    }
+
+    /**
+     * Stop painting and release the buffers; to be called on the JavaFX
+     * Application Thread once the processing thread is stopped
+     */
+    public void close() {
+        this.closed = true;
+        for (BgraFrame frame : this.frames)
+            frame.close();
+    }
+
+}
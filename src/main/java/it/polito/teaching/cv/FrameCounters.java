@@ -0,0 +1,133 @@
+package it.polito.teaching.cv;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the frames at each step of a {@link FramePipeline}, so that it is
+ * possible to tell where frames are lost: every captured frame is either
+ * dropped by the ring, still queued, failed or processed, and every processed
+ * frame is either displayed, coalesced (replaced by a newer frame before
+ * reaching the screen) or not yet shown.
+ * <p>
+ * Counters are updated by the pipeline threads and can be read from any
+ * thread.
+ *
+ * @since 1.6
+ */
+public class FrameCounters {
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong displayed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    void frameCaptured() {
+        this.captured.incrementAndGet();
+    }
+
+    void oldestDropped() {
+        this.droppedOldest.incrementAndGet();
+    }
+
+    void newestDropped() {
+        this.droppedNewest.incrementAndGet();
+    }
+
+    void frameProcessed() {
+        this.processed.incrementAndGet();
+    }
+
+    void frameFailed() {
+        this.failed.incrementAndGet();
+    }
+
+    void frameDisplayed() {
+        this.displayed.incrementAndGet();
+    }
+
+    void frameCoalesced() {
+        this.coalesced.incrementAndGet();
+    }
+
+    /**
+     * @return the frames read from the source
+     */
+    public long captured() {
+        return this.captured.get();
+    }
+
+    /**
+     * @return the queued frames overwritten by newer ones
+     */
+    public long droppedOldest() {
+        return this.droppedOldest.get();
+    }
+
+    /**
+     * @return the new frames discarded because the ring was full
+     */
+    public long droppedNewest() {
+        return this.droppedNewest.get();
+    }
+
+    /**
+     * @return all the frames dropped by the ring
+     */
+    public long dropped() {
+        return this.droppedOldest.get() + this.droppedNewest.get();
+    }
+
+    /**
+     * @return the frames successfully processed
+     */
+    public long processed() {
+        return this.processed.get();
+    }
+
+    /**
+     * @return the frames whose processing threw an exception
+     */
+    public long failed() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the processed frames that reached the screen
+     */
+    public long displayed() {
+        return this.displayed.get();
+    }
+
+    /**
+     * @return the processed frames replaced by newer ones before reaching the
+     * screen
+     */
+    public long coalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * Set all the counters back to zero
+     */
+    public void reset() {
+        this.captured.set(0);
+        this.droppedOldest.set(0);
+        this.droppedNewest.set(0);
+        this.processed.set(0);
+        this.failed.set(0);
+        this.displayed.set(0);
+        this.coalesced.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "captured " + this.captured() + ", dropped " + this.dropped() + " (oldest "
+                + this.droppedOldest() + ", newest " + this.droppedNewest() + "), processed "
+                + this.processed() + ", failed " + this.failed() + ", displayed " + this.displayed()
+                + ", coalesced " + this.coalesced();
+    }
+
+}
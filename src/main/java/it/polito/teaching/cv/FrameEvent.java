@@ -0,0 +1,114 @@
+package it.polito.teaching.cv;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * A Java Flight Recorder event for a frame whose processing took longer
+ * than the threshold (40 ms by default, more than the 33 ms budget of a 30
+ * frames/s stream; it can be changed in the recording settings). The event
+ * spans the processing and rendering of the frame, so it can be correlated
+ * with GC pauses and safepoints in the same recording.
+ * <p>
+ * Use {@link #start()} and {@link #finish}: nothing is allocated while the
+ * event is disabled.
+ *
+ * @since 1.6
+ */
+@Name("it.polito.teaching.cv.Frame")
+@Label("Segmented Frame")
+@Category("Image Segmentation")
+@Description("A slow frame through the segmentation pipeline")
+@Threshold("40 ms")
+@StackTrace(false)
+public class FrameEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(FrameEvent.class);
+
+    @Label("Source Timestamp")
+    @Description("The System.nanoTime() at which the frame was acquired")
+    long sourceTimestamp;
+
+    @Label("Capture Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long captureDuration;
+
+    @Label("Queue Duration")
+    @Description("The time spent between the acquisition and the processing")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueDuration;
+
+    @Label("Processing Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long processingDuration;
+
+    @Label("Render Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long renderDuration;
+
+    @Label("Mode")
+    String mode;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    /**
+     * Begin timing a frame, if the event is enabled
+     *
+     * @return the started event, or <code>null</code> if disabled
+     */
+    static FrameEvent start() {
+        if (!TYPE.isEnabled())
+            return null;
+
+        FrameEvent event = new FrameEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End timing a frame and record it if it was slow
+     *
+     * @param event              the event returned by {@link #start()},
+     *                           possibly <code>null</code>
+     * @param frame              the acquired frame
+     * @param mode               the applied segmentation
+     * @param sourceTimestamp    when the frame was acquired
+     * @param captureDuration    the time taken to read the frame
+     * @param processingStart    when the processing started
+     * @param processingDuration the time taken to segment the frame
+     * @param renderDuration     the time taken to render (or write) the
+     *                           result
+     */
+    static void finish(FrameEvent event, Mat frame, SegmentationMode mode,
+                       long sourceTimestamp, long captureDuration, long processingStart,
+                       long processingDuration, long renderDuration) {
+        if (event == null)
+            return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.sourceTimestamp = sourceTimestamp;
+            event.captureDuration = captureDuration;
+            event.queueDuration = processingStart - sourceTimestamp;
+            event.processingDuration = processingDuration;
+            event.renderDuration = renderDuration;
+            event.mode = mode.name();
+            event.width = frame.cols();
+            event.height = frame.rows();
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a {@link FrameSource} to the code processing its frames through a
+ * {@link FrameRing}. A dedicated grabber thread does nothing but reading
+ * frames into the ring, while a processing thread consumes them, so that a
+ * slow frame never stalls the acquisition. When processing cannot keep up,
+ * the {@link BackpressurePolicy} of the ring decides which frames are lost;
+ * {@link FrameCounters} tell how many and where.
+ * <p>
+ * Sources that are not live are read ahead into the ring (use
+ * {@link BackpressurePolicy#BLOCK} not to lose frames), either as fast as
+ * the processing goes or paced at their native frame rate, see
+ * {@link #setPlaybackRate(double)}.
+ *
+ * @since 1.6
+ */
+public class FramePipeline {
+
+    /**
+     * The code processing each acquired frame
+     */
+    public interface FrameHandler {
+        /**
+         * Process a frame. The frame belongs to the ring and must not be
+         * retained after returning.
+         *
+         * @param frame           the acquired frame
+         * @param timestamp       the {@link System#nanoTime()} at which the
+         *                        frame has been acquired
+         * @param captureDuration the time taken to read the frame, in
+         *                        nanoseconds
+         */
+        void handle(Mat frame, long timestamp, long captureDuration);
+    }
+
+    // how long the threads wait before checking whether to stop
+    private static final long POLL_MS = 100;
+    // how long the grabber waits after a failed read of a live source (the
+    // period of a 30 fps camera), and after how many consecutive failures,
+    // about 3 s, it gives up
+    private static final long RETRY_MS = 33;
+    private static final int MAX_FAILED_READS = 90;
+
+    private final FrameSource source;
+    private final FrameCounters counters = new FrameCounters();
+    private final PipelineMetrics metrics;
+    private final FrameRing ring;
+    private final FrameHandler handler;
+    private Thread grabber;
+    private Thread processor;
+    private volatile boolean running;
+    // the speed of non-live sources w.r.t. their frame rate, 0 for no pacing
+    private double playbackRate;
+
+    /**
+     * @param source       an opened frame source
+     * @param ringCapacity the maximum number of frames waiting to be
+     *                     processed
+     * @param policy       what to do with new frames when processing cannot
+     *                     keep up
+     * @param metrics      where to record the capture latency
+     * @param handler      the code processing the frames
+     */
+    public FramePipeline(FrameSource source, int ringCapacity, BackpressurePolicy policy,
+                         PipelineMetrics metrics, FrameHandler handler) {
+        this.source = source;
+        this.metrics = metrics;
+        this.ring = new FrameRing(ringCapacity, policy, this.counters);
+        this.handler = handler;
+    }
+
+    /**
+     * Set the pace at which a non-live source is read, to be called before
+     * {@link #start()}
+     *
+     * @param playbackRate 1 to play the source in real time, 2 for twice as
+     *                     fast, etc., or 0 (the default) to read frames as
+     *                     fast as they are consumed
+     */
+    public void setPlaybackRate(double playbackRate) {
+        this.playbackRate = playbackRate;
+    }
+
+    /**
+     * Start the grabber and the processing threads
+     */
+    public void start() {
+        this.running = true;
+
+        this.grabber = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                grabFrames();
+            }
+        }, "frame-grabber");
+        this.processor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                processFrames();
+            }
+        }, "frame-processor");
+
+        this.grabber.setDaemon(true);
+        this.processor.setDaemon(true);
+        this.grabber.start();
+        this.processor.start();
+    }
+
+    /**
+     * Stop both threads and wait for them to terminate. The source is left
+     * open.
+     *
+     * @param timeout the maximum time to wait for each thread
+     * @param unit    the unit of the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        this.running = false;
+        if (this.processor != null) {
+            this.processor.interrupt();
+            this.processor.join(unit.toMillis(timeout));
+        }
+        // a grabber blocked on a full ring is woken up, otherwise it leaves
+        // the loop after the current (blocking) read
+        if (this.grabber != null) {
+            this.grabber.interrupt();
+            this.grabber.join(unit.toMillis(timeout));
+        }
+    }
+
+    /**
+     * Release the frame buffers; to be called after {@link #stop(long, TimeUnit)}
+     */
+    public void close() {
+        this.ring.close();
+    }
+
+    /**
+     * @return the frame counters of this pipeline
+     */
+    public FrameCounters getCounters() {
+        return this.counters;
+    }
+
+    /**
+     * @return the latency metrics of this pipeline
+     */
+    public PipelineMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the ring between the grabber and the processing threads
+     */
+    public FrameRing getRing() {
+        return this.ring;
+    }
+
+    /**
+     * The loop of the grabber thread: only read frames into the ring
+     */
+    private void grabFrames() {
+        boolean live = this.source.isLive();
+        double fps = this.source.frameRate();
+        boolean paced = !live && this.playbackRate > 0 && fps > 0;
+        long periodNanos = paced ? (long) (1e9 / (fps * this.playbackRate)) : 0;
+        long start = System.nanoTime();
+        long frames = 0;
+        int failedReads = 0;
+
+        while (this.running && this.source.isOpened()) {
+            Mat slot = this.ring.beginWrite();
+            StageEvent event = StageEvent.start();
+            long readStart = System.nanoTime();
+            boolean read = this.source.read(slot);
+            long readEnd = System.nanoTime();
+            StageEvent.finish(event, Stage.CAPTURE);
+            if (!read) {
+                this.ring.abortWrite();
+                // the end of a recording
+                if (!live)
+                    break;
+                // a camera may fail a few reads, but not spin on a lost one
+                if (++failedReads >= MAX_FAILED_READS) {
+                    System.err.println("No frame from " + this.source + " after " + failedReads
+                            + " attempts, stopping the acquisition");
+                    break;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_MS);
+                } catch (InterruptedException e) {
+                    // asked to stop while waiting
+                    break;
+                }
+                continue;
+            }
+
+            failedReads = 0;
+            this.counters.frameCaptured();
+            if (this.metrics.isEnabled())
+                this.metrics.recordValue(Stage.CAPTURE, readEnd - readStart);
+            try {
+                if (paced) {
+                    long wait = start + frames * periodNanos - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                frames++;
+                // a paced frame is considered acquired when it is due
+                this.ring.commitWrite(paced ? System.nanoTime() : readEnd, readEnd - readStart);
+            } catch (InterruptedException e) {
+                // asked to stop while waiting
+                this.ring.abortWrite();
+                break;
+            }
+        }
+    }
+
+    /**
+     * The loop of the processing thread: hand the queued frames to the
+     * handler
+     */
+    private void processFrames() {
+        while (this.running) {
+            Mat frame;
+            try {
+                frame = this.ring.take(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // asked to stop
+                break;
+            }
+
+            if (frame == null)
+                continue;
+
+            try {
+                this.handler.handle(frame, this.ring.timestamp(), this.ring.captureDuration());
+                this.counters.frameProcessed();
+            } catch (Exception e) {
+                // log the (full) error and go on with the next frame
+                this.counters.frameFailed();
+                System.err.print("ERROR");
+                e.printStackTrace();
+            } finally {
+                this.ring.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of preallocated {@link Mat} slots shared between the thread
+ * acquiring frames and the thread processing them.
+ * <p>
+ * The producer fills a free slot ({@link #beginWrite()}) and queues it
+ * ({@link #commitWrite(long, long)}); the consumer borrows the oldest queued slot
+ * ({@link #take(long, TimeUnit)}) and gives it back once done
+ * ({@link #release()}). Two extra slots beyond the capacity are kept for the
+ * frame being written and the frame being read, so the producer never waits
+ * for the consumer unless asked to: what happens to a frame committed while
+ * the ring is full is decided by a {@link BackpressurePolicy}.
+ * <p>
+ * Slots are reused for the whole life of the ring, so once every slot has
+ * been filled at the camera resolution no more frame buffers are allocated.
+ *
+ * @since 1.6
+ */
+public class FrameRing {
+
+    /**
+     * The slots kept beyond the capacity, for the frame being written and
+     * the frame being read
+     */
+    public static final int EXTRA_SLOTS = 2;
+
+    // the preallocated frame buffers
+    private final Mat[] slots;
+    // capture timestamp (System.nanoTime()) of the frame in each slot
+    private final long[] timestamps;
+    // the time taken to read the frame in each slot
+    private final long[] captureDurations;
+    // indices of the queued slots, oldest first
+    private final int[] queue;
+    // indices of the slots that can be written
+    private final int[] free;
+    private int head;
+    private int size;
+    private int freeCount;
+    // the slot currently filled by the producer and read by the consumer
+    private int writing = -1;
+    private int reading = -1;
+
+    private final BackpressurePolicy policy;
+    private final FrameCounters counters;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+
+    // statistics, readable from any thread
+    private volatile int occupancy;
+    private volatile int peakOccupancy;
+
+    /**
+     * Create a ring able to queue up to <code>capacity</code> frames
+     *
+     * @param capacity the maximum number of queued frames
+     * @param policy   what to do with new frames when the ring is full
+     * @param counters where to count the dropped frames
+     */
+    public FrameRing(int capacity, BackpressurePolicy policy, FrameCounters counters) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Ring capacity must be positive: " + capacity);
+
+        this.policy = policy;
+        this.counters = counters;
+
+        int slotCount = capacity + EXTRA_SLOTS;
+        this.slots = new Mat[slotCount];
+        this.timestamps = new long[slotCount];
+        this.captureDurations = new long[slotCount];
+        this.queue = new int[capacity];
+        this.free = new int[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            this.slots[i] = new Mat();
+            this.free[i] = i;
+        }
+        this.freeCount = slotCount;
+    }
+
+    /**
+     * Get a slot to be filled by the producer
+     *
+     * @return the {@link Mat} to read the next frame into
+     */
+    public Mat beginWrite() {
+        this.lock.lock();
+        try {
+            if (this.writing < 0)
+                this.writing = this.free[--this.freeCount];
+            return this.slots[this.writing];
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Queue the slot obtained with {@link #beginWrite()}. If the ring is full,
+     * the backpressure policy decides whether the oldest queued frame is
+     * overwritten, the new frame is discarded or the caller waits.
+     *
+     * @param timestamp       the capture time of the frame, in nanoseconds
+     * @param captureDuration the time taken to read the frame, in
+     *                        nanoseconds
+     * @return <code>false</code> if the new frame has been discarded
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public boolean commitWrite(long timestamp, long captureDuration) throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            if (this.writing < 0)
+                throw new IllegalStateException("No slot is being written");
+
+            if (this.size == this.queue.length) {
+                switch (this.policy) {
+                    case DROP_NEWEST:
+                        // keep the queued frames and recycle the new one
+                        this.free[this.freeCount++] = this.writing;
+                        this.writing = -1;
+                        this.counters.newestDropped();
+                        return false;
+                    case BLOCK:
+                        while (this.size == this.queue.length)
+                            this.notFull.await();
+                        break;
+                    default:
+                        // recycle the oldest frame
+                        this.free[this.freeCount++] = this.queue[this.head];
+                        this.head = (this.head + 1) % this.queue.length;
+                        this.size--;
+                        this.counters.oldestDropped();
+                        break;
+                }
+            }
+
+            this.timestamps[this.writing] = timestamp;
+            this.captureDurations[this.writing] = captureDuration;
+            this.queue[(this.head + this.size) % this.queue.length] = this.writing;
+            this.size++;
+            this.writing = -1;
+            this.updateOccupancy();
+            this.notEmpty.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Give back the slot obtained with {@link #beginWrite()} without queuing
+     * it (e.g., the read failed)
+     */
+    public void abortWrite() {
+        this.lock.lock();
+        try {
+            if (this.writing >= 0) {
+                this.free[this.freeCount++] = this.writing;
+                this.writing = -1;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Borrow the oldest queued frame, waiting for one if the ring is empty.
+     * The frame must be given back with {@link #release()} before taking the
+     * next one.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return the oldest queued frame, or <code>null</code> if none arrived
+     * in time
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public Mat take(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            if (this.reading >= 0)
+                throw new IllegalStateException("The previous frame has not been released");
+
+            while (this.size == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+
+            this.reading = this.queue[this.head];
+            this.head = (this.head + 1) % this.queue.length;
+            this.size--;
+            this.updateOccupancy();
+            this.notFull.signal();
+            return this.slots[this.reading];
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the capture timestamp of the frame currently borrowed by the
+     * consumer
+     *
+     * @return the capture time, in nanoseconds
+     */
+    public long timestamp() {
+        this.lock.lock();
+        try {
+            return this.reading < 0 ? 0 : this.timestamps[this.reading];
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the time taken to read the frame currently borrowed by the consumer
+     *
+     * @return the capture duration, in nanoseconds
+     */
+    public long captureDuration() {
+        this.lock.lock();
+        try {
+            return this.reading < 0 ? 0 : this.captureDurations[this.reading];
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Give back the frame obtained with {@link #take(long, TimeUnit)}
+     */
+    public void release() {
+        this.lock.lock();
+        try {
+            if (this.reading >= 0) {
+                this.free[this.freeCount++] = this.reading;
+                this.reading = -1;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Release the native memory of all the slots. The ring cannot be used
+     * afterwards.
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            for (Mat slot : this.slots)
+                slot.release();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void updateOccupancy() {
+        this.occupancy = this.size;
+        if (this.size > this.peakOccupancy)
+            this.peakOccupancy = this.size;
+    }
+
+    /**
+     * @return the maximum number of queued frames
+     */
+    public int capacity() {
+        return this.queue.length;
+    }
+
+    /**
+     * @return the number of frames currently queued
+     */
+    public int occupancy() {
+        return this.occupancy;
+    }
+
+    /**
+     * @return the highest number of frames queued at the same time
+     */
+    public int peakOccupancy() {
+        return this.peakOccupancy;
+    }
+
+    /**
+     * Start measuring the peak occupancy again from the current one
+     */
+    public void resetPeakOccupancy() {
+        this.peakOccupancy = this.occupancy;
+    }
+
+    /**
+     * @return the policy applied when the ring is full
+     */
+    public BackpressurePolicy policy() {
+        return this.policy;
+    }
+
+    /**
+     * @return the number of queued frames overwritten before being processed
+     */
+    public long overwrites() {
+        return this.counters.droppedOldest();
+    }
+
+}
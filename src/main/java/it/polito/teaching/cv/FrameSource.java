@@ -0,0 +1,67 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * A source of BGR frames to be segmented: a camera, a recorded video, a
+ * directory of images or a synthetic generator. All of them feed the same
+ * processing code.
+ * <p>
+ * Live sources deliver frames at their own pace; the other ones can be read
+ * as fast as the consumer wants, so a {@link FramePipeline} reads them ahead
+ * into its ring and can run faster than real time.
+ *
+ * @since 1.6
+ */
+public interface FrameSource {
+
+    /**
+     * Open the source
+     *
+     * @return <code>true</code> if frames can be read
+     */
+    boolean open();
+
+    /**
+     * @return <code>true</code> if the source is open
+     */
+    boolean isOpened();
+
+    /**
+     * Read the next frame, reusing the memory of the given {@link Mat} when
+     * the resolution is the same
+     *
+     * @param frame where to store the frame
+     * @return <code>false</code> if no frame could be read (e.g., at the end
+     * of a file)
+     */
+    boolean read(Mat frame);
+
+    /**
+     * @return the native frame rate of the source, in frames per second, or
+     * 0 if unknown
+     */
+    double frameRate();
+
+    /**
+     * @return the width of the frames, or 0 if unknown
+     */
+    int width();
+
+    /**
+     * @return the height of the frames, or 0 if unknown
+     */
+    int height();
+
+    /**
+     * @return <code>true</code> if frames arrive at their own pace (e.g., a
+     * camera), <code>false</code> if they can be read ahead
+     */
+    boolean isLive();
+
+    /**
+     * Release the source
+     */
+    void close();
+
+}
@@ -0,0 +1,56 @@
+package it.polito.teaching.cv;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Create a {@link FrameSource} from a textual description, as given on the
+ * command line or with the <code>cv.source</code> system property:
+ * <ul>
+ * <li>a number: the camera with that device index;</li>
+ * <li><code>synthetic[:WIDTHxHEIGHT[@FPS]]</code>: generated frames
+ * (640x480 at 30 fps by default);</li>
+ * <li>a directory: the images it contains;</li>
+ * <li>anything else: a video file.</li>
+ * </ul>
+ *
+ * @since 1.6
+ */
+public final class FrameSources {
+
+    private static final Pattern SYNTHETIC = Pattern.compile("synthetic(?::(\\d+)x(\\d+)(?:@(\\d+(?:\\.\\d+)?))?)?");
+    // the frame rate of the sources without one
+    private static final double DEFAULT_FRAME_RATE = 30;
+
+    private FrameSources() {
+    }
+
+    /**
+     * Get the source described by the given text
+     *
+     * @param spec the description of the source
+     * @return the corresponding (not yet opened) source
+     */
+    public static FrameSource fromSpec(String spec) {
+        String text = spec == null ? "" : spec.trim();
+        if (text.isEmpty())
+            return new CameraFrameSource(0);
+        if (text.matches("\\d+"))
+            return new CameraFrameSource(Integer.parseInt(text));
+
+        Matcher synthetic = SYNTHETIC.matcher(text);
+        if (synthetic.matches()) {
+            int width = synthetic.group(1) != null ? Integer.parseInt(synthetic.group(1)) : 640;
+            int height = synthetic.group(2) != null ? Integer.parseInt(synthetic.group(2)) : 480;
+            double fps = synthetic.group(3) != null ? Double.parseDouble(synthetic.group(3)) : DEFAULT_FRAME_RATE;
+            return new SyntheticFrameSource(width, height, fps, -1);
+        }
+
+        File file = new File(text);
+        if (file.isDirectory())
+            return new ImageDirectoryFrameSource(file, DEFAULT_FRAME_RATE);
+        return new VideoFileFrameSource(text);
+    }
+
+}
@@ -0,0 +1,91 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+/**
+ * The views of fixed regions of the frames, created once per frame buffer
+ * instead of once per frame: the sources fill a few reused buffers (see
+ * {@link FrameRing}), so the same headers serve all the frames.
+ * <p>
+ * The buffers are told apart by their {@link Mat}, which must keep its
+ * memory while it is given: the frame buffers are reallocated only when the
+ * resolution changes, and then the owner creates its views again. The views
+ * of as many buffers as the caller cycles through are kept (see
+ * {@link SegmentationEngine#SegmentationEngine(PipelineMetrics, java.util.concurrent.ForkJoinPool, int)}),
+ * and the oldest ones are released when another buffer comes; with more
+ * buffers than that, the views are created again for every frame. An
+ * instance must be used by one thread at a time.
+ *
+ * @since 1.6
+ */
+final class FrameViews {
+
+    /**
+     * The number of frame buffers whose views are kept, unless told
+     * otherwise
+     */
+    static final int DEFAULT_CAPACITY = 8;
+
+    private final Rect[] regions;
+    // each buffer and its views
+    private final Mat[] frames;
+    private final Mat[][] views;
+    // the slot of the next buffer
+    private int next;
+
+    /**
+     * @param capacity the number of frame buffers whose views are kept
+     * @param regions  the regions of the frames, owned by the caller
+     */
+    FrameViews(int capacity, Rect... regions) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("At least one frame buffer is needed: " + capacity);
+
+        this.regions = regions;
+        this.frames = new Mat[capacity];
+        this.views = new Mat[capacity][];
+    }
+
+    /**
+     * Get the views of a frame, creating them only for a new buffer
+     *
+     * @param frame the frame, large enough for all the regions
+     * @return the views, in the order of the regions
+     */
+    Mat[] of(Mat frame) {
+        Mat[] frames = this.frames;
+        for (int i = 0; i < frames.length; i++)
+            if (frames[i] == frame)
+                return this.views[i];
+
+        int slot = this.next;
+        this.next = (this.next + 1) % frames.length;
+        this.release(slot);
+        Mat[] views = new Mat[this.regions.length];
+        for (int r = 0; r < views.length; r++)
+            views[r] = new Mat(frame, this.regions[r]);
+        frames[slot] = frame;
+        this.views[slot] = views;
+        return views;
+    }
+
+    /**
+     * Release all the views
+     */
+    void close() {
+        for (int i = 0; i < this.frames.length; i++)
+            this.release(i);
+        this.next = 0;
+    }
+
+    private void release(int slot) {
+        if (this.views[slot] == null)
+            return;
+        for (Mat view : this.views[slot])
+            view.deallocate();
+        this.views[slot] = null;
+        this.frames[slot] = null;
+    }
+
+}
@@ -0,0 +1,93 @@
+package it.polito.teaching.cv;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Convert Mat objects (OpenCV) to an Image for JavaFX without any encoding:
+ * the frame is converted to BGRA into a reused native buffer, whose memory is
+ * then written straight into a reused {@link WritableImage}.
+ * <p>
+ * Buffers and image are allocated again only when the frame size changes, so
+ * rendering a video stream produces no garbage per frame. Painting must
+ * happen on the JavaFX Application Thread once the image is shown, see
+ * {@link DisplayPublisher}.
+ *
+ * @since 1.6
+ */
+public class FxFrameRenderer {
+
+    // BGRA with an opaque alpha is the same in premultiplied form, which is
+    // the native format of most JavaFX pipelines
+    private static final WritablePixelFormat<ByteBuffer> FORMAT = PixelFormat.getByteBgraPreInstance();
+
+    // the frame converted by prepare()
+    private final BgraFrame frame = new BgraFrame();
+
+    // the image shown on the screen
+    private WritableImage image;
+    private PixelWriter writer;
+
+    /**
+     * Convert a frame and write it into the image
+     *
+     * @param frame the {@link Mat} representing the current frame
+     * @return the {@link Image} to show
+     */
+    public Image render(Mat frame) {
+        this.prepare(frame);
+        return this.paint();
+    }
+
+    /**
+     * Convert a frame (gray, BGR or BGRA) to BGRA into the internal buffer
+     *
+     * @param frame the {@link Mat} representing the current frame
+     */
+    public void prepare(Mat frame) {
+        this.frame.convertFrom(frame);
+    }
+
+    /**
+     * Write the last prepared frame into the image
+     *
+     * @return the {@link Image} to show, the same instance as long as the
+     * frame size does not change
+     */
+    public WritableImage paint() {
+        return this.paint(this.frame);
+    }
+
+    /**
+     * Write a converted frame into the image
+     *
+     * @param frame the frame to show
+     * @return the {@link Image} to show, the same instance as long as the
+     * frame size does not change
+     */
+    WritableImage paint(BgraFrame frame) {
+        int width = frame.width();
+        int height = frame.height();
+        if (this.image == null || (int) this.image.getWidth() != width || (int) this.image.getHeight() != height) {
+            this.image = new WritableImage(width, height);
+            this.writer = this.image.getPixelWriter();
+        }
+
+        this.writer.setPixels(0, 0, width, height, FORMAT, frame.pixels(), width * 4);
+        return this.image;
+    }
+
+    /**
+     * Release the native buffer
+     */
+    public void close() {
+        this.frame.close();
+    }
+
+}
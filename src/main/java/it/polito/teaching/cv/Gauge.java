@@ -0,0 +1,125 @@
+package it.polito.teaching.cv;
+
+import java.util.Locale;
+
+/**
+ * The values reported by the pipeline besides the latency of its stages,
+ * kept by {@link PipelineMetrics} and exported with them.
+ *
+ * @since 1.6
+ */
+public enum Gauge {
+
+    /**
+     * The Hue threshold of the background removal, as estimated by
+     * {@link HueStatistics}
+     */
+    HUE_THRESHOLD("The Hue threshold of the background removal"),
+    /**
+     * The exact Hue threshold, computed over every pixel when the estimate
+     * is checked
+     */
+    HUE_EXACT_THRESHOLD("The exact Hue threshold, at the last check of the estimate"),
+    /**
+     * The difference between the estimated and the exact threshold, at the
+     * last check
+     */
+    HUE_ERROR("The absolute error of the estimated Hue threshold, at the last check"),
+    /**
+     * The largest difference between the estimated and the exact threshold
+     */
+    HUE_MAX_ERROR("The largest absolute error of the estimated Hue threshold"),
+    /**
+     * How many times the Hue statistics have been computed
+     */
+    HUE_UPDATES("The updates of the Hue statistics", true),
+    /**
+     * How many of the updates have been triggered by a change of scene
+     */
+    HUE_SCENE_CHANGES("The updates of the Hue statistics triggered by a change of scene", true),
+    /**
+     * One minus the intersection over union of the mask computed at a
+     * reduced resolution and of the full resolution one, at the last check
+     */
+    MASK_IOU_LOSS("The IoU loss of the reduced resolution mask, at the last check"),
+    /**
+     * The largest loss of the reduced resolution mask
+     */
+    MASK_MAX_IOU_LOSS("The largest IoU loss of the reduced resolution mask"),
+    /**
+     * The fraction of the tiles processed again by the incremental
+     * processing, on the last frame
+     */
+    TILES_RECOMPUTED("The fraction of the tiles processed again, on the last frame"),
+    /**
+     * The number of blobs in the mask of the background removal, on the last
+     * frame where they have been searched
+     */
+    BLOBS("The foreground objects found on the last frame"),
+    /**
+     * The size of the polygons of the last frame, once encoded
+     */
+    POLYGON_BYTES("The size of the encoded polygons of the last frame, in bytes"),
+    /**
+     * How many frames have been segmented as keyframes, when the mask is
+     * propagated to the others
+     */
+    KEYFRAMES("The frames segmented as keyframes", true),
+    /**
+     * The drift of the propagated mask since the last keyframe
+     */
+    PROPAGATION_DRIFT("The drift of the propagated mask since the last keyframe, in pixels"),
+    /**
+     * The fraction of the full resolution Canny edges that the edges found
+     * on a pyramid level cover, on the last checked frame
+     */
+    CANNY_EDGE_AGREEMENT("The fraction of the full resolution Canny edges covered by the pyramid level ones"),
+    /**
+     * The fraction of the time of full resolution Canny saved by the
+     * pyramid level, on the last checked frame
+     */
+    CANNY_TIME_SAVED("The fraction of the full resolution Canny time saved by the pyramid level"),
+    /**
+     * The median gray level the automatic Canny thresholds are derived from,
+     * see {@link CannyThresholds}
+     */
+    CANNY_MEDIAN("The median gray level of the automatic Canny thresholds"),
+    /**
+     * How many times the median gray level has been computed
+     */
+    CANNY_UPDATES("The updates of the median gray level of the automatic Canny thresholds", true);
+
+    private final String description;
+    private final boolean counter;
+
+    Gauge(String description) {
+        this(description, false);
+    }
+
+    Gauge(String description, boolean counter) {
+        this.description = description;
+        this.counter = counter;
+    }
+
+    /**
+     * @return what the gauge measures, for the exported metrics
+     */
+    public String description() {
+        return this.description;
+    }
+
+    /**
+     * @return <code>true</code> if the value only increases (a count of
+     * events), exported as a counter
+     */
+    public boolean isCounter() {
+        return this.counter;
+    }
+
+    /**
+     * @return the name of the gauge in metrics, e.g. <code>hue_error</code>
+     */
+    public String metricName() {
+        return this.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,195 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+
+/**
+ * Estimates the average Hue used as threshold by the background removal,
+ * without computing the full histogram of every frame:
+ * <ul>
+ * <li>only one pixel every {@link SegmentationParams#getHueStride()}, along
+ * both axes, is sampled;</li>
+ * <li>the estimate is updated every
+ * {@link SegmentationParams#getHueUpdateEvery()} frames, or as soon as a
+ * coarse Hue histogram of the frame moves away from the one of the last
+ * update by more than {@link SegmentationParams#getSceneChangeThreshold()}
+ * (a change of scene);</li>
+ * <li>the estimates are smoothed by an exponential moving average, with
+ * weight {@link SegmentationParams#getHueSmoothing()}, restarted on each
+ * change of scene.</li>
+ * </ul>
+ * Every {@value #CHECK_EVERY} updates, the estimate is compared with the
+ * exact value over every pixel, and the error is reported as a
+ * {@link Gauge} of the {@link PipelineMetrics}, together with the threshold.
+ * <p>
+ * The Hue is computed from the BGR pixels with the arithmetic of
+ * <code>cvtColor</code>, so that, sampling every pixel, the estimate is the
+ * value of {@link SegmentationEngine#getHistAverage()}. An instance
+ * keeps the state of one video stream and must be used by one thread at a
+ * time.
+ *
+ * @since 1.6
+ */
+public class HueStatistics {
+
+    /**
+     * How many updates between two checks of the estimate against the exact
+     * value
+     */
+    public static final int CHECK_EVERY = 10;
+
+    // the coarse histogram of the scene change detector: bins of 10 Hue
+    // values, sampling at least 16 pixels apart
+    private static final int SCENE_BINS = 18;
+    private static final int SCENE_MIN_STRIDE = 16;
+
+    private final PipelineMetrics metrics;
+
+    // one sampled row of BGR pixels
+    private byte[] row = new byte[0];
+    private final int[] histogram = new int[180];
+    // the changes of scene, on the coarse Hue histogram
+    private final SceneChangeDetector sceneChanges = new SceneChangeDetector(SCENE_BINS) {
+
+        @Override
+        void histogram(Mat frame, SegmentationParams params, double[] bins) {
+            coarseHistogram(frame, Math.max(SCENE_MIN_STRIDE, params.getHueStride() * 4), bins);
+        }
+    };
+
+    // the smoothed threshold, NaN before the first update
+    private double threshold = Double.NaN;
+    private long frames;
+    private long lastUpdate;
+    private long updates;
+
+    /**
+     * @param metrics where to report the threshold and its error
+     */
+    public HueStatistics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the Hue threshold of a frame, updating the statistics if due
+     *
+     * @param frame  the current frame, in BGR
+     * @param params the sampling, update and smoothing settings
+     * @return the estimated average Hue
+     */
+    public double threshold(Mat frame, SegmentationParams params) {
+        if (frame.type() != CV_8UC3)
+            throw new IllegalArgumentException("The Hue statistics need BGR frames, not type " + frame.type());
+
+        long index = this.frames++;
+        boolean first = Double.isNaN(this.threshold);
+        boolean due = first || index - this.lastUpdate >= params.getHueUpdateEvery();
+        boolean sceneChange = false;
+        if (!first && params.getSceneChangeThreshold() > 0)
+            sceneChange = this.sceneChanges.changed(frame, params);
+        if (!due && !sceneChange)
+            return this.threshold;
+
+        double estimate = this.average(frame, params.getHueStride());
+        if (first || sceneChange)
+            this.threshold = estimate;
+        else
+            this.threshold += params.getHueSmoothing() * (estimate - this.threshold);
+        this.lastUpdate = index;
+
+        // the reference of the next changes of scene
+        if (params.getSceneChangeThreshold() > 0)
+            this.sceneChanges.update(frame, params, !first);
+
+        this.metrics.setGauge(Gauge.HUE_THRESHOLD, this.threshold);
+        this.metrics.addToGauge(Gauge.HUE_UPDATES, 1);
+        if (sceneChange)
+            this.metrics.addToGauge(Gauge.HUE_SCENE_CHANGES, 1);
+        if (this.updates++ % CHECK_EVERY == 0) {
+            double exact = this.average(frame, 1);
+            double error = Math.abs(this.threshold - exact);
+            this.metrics.setGauge(Gauge.HUE_EXACT_THRESHOLD, exact);
+            this.metrics.setGauge(Gauge.HUE_ERROR, error);
+            this.metrics.raiseGauge(Gauge.HUE_MAX_ERROR, error);
+        }
+        return this.threshold;
+    }
+
+    /**
+     * Forget the statistics, e.g., when the source changes
+     */
+    public void reset() {
+        this.threshold = Double.NaN;
+        this.frames = 0;
+        this.lastUpdate = 0;
+        this.updates = 0;
+    }
+
+    /**
+     * Compute the average Hue of the sampled pixels, with the same histogram
+     * and arithmetic as {@link SegmentationEngine#getHistAverage()}
+     *
+     * @param frame  the frame, in BGR
+     * @param stride the distance between the sampled pixels
+     * @return the average Hue
+     */
+    double average(Mat frame, int stride) {
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        long sampled = this.sample(frame, stride, histogram, 1);
+
+        double average = 0.0;
+        for (int h = 0; h < 180; h++)
+            average += ((float) histogram[h] * h);
+        return average / sampled;
+    }
+
+    /**
+     * Compute the coarse Hue histogram of the sampled pixels
+     */
+    private void coarseHistogram(Mat frame, int stride, double[] bins) {
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0, SCENE_BINS, 0);
+        long sampled = this.sample(frame, stride, histogram, 10);
+        for (int i = 0; i < SCENE_BINS; i++)
+            bins[i] = (double) histogram[i] / sampled;
+    }
+
+    /**
+     * Count the Hue values of the sampled pixels, leaving out 179 as
+     * <code>calcHist</code> does
+     *
+     * @param binWidth the number of Hue values per bin
+     * @return the number of sampled pixels
+     */
+    private long sample(Mat frame, int stride, int[] histogram, int binWidth) {
+        int rows = frame.rows();
+        int cols = frame.cols();
+        int rowBytes = cols * 3;
+        if (this.row.length < rowBytes)
+            this.row = new byte[rowBytes];
+
+        byte[] row = this.row;
+        BytePointer data = frame.isContinuous() ? frame.data() : null;
+        long sampled = 0;
+        for (int y = 0; y < rows; y += stride) {
+            if (data != null)
+                data.position((long) y * rowBytes).get(row, 0, rowBytes);
+            else
+                frame.ptr(y).get(row, 0, rowBytes);
+
+            for (int p = 0; p < rowBytes; p += 3 * stride) {
+                int h = JavaBackgroundRemoval.hueOf(row[p] & 0xFF, row[p + 1] & 0xFF, row[p + 2] & 0xFF);
+                if (h < 179)
+                    histogram[h / binWidth]++;
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+}
@@ -0,0 +1,132 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+
+/**
+ * Frames loaded, in name order, from the images stored in a directory.
+ *
+ * @since 1.6
+ */
+public class ImageDirectoryFrameSource implements FrameSource {
+
+    // the image formats read from the directory
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".tif", ".tiff"};
+
+    private final File directory;
+    private final double frameRate;
+    private File[] images;
+    private int next;
+    private int width;
+    private int height;
+
+    /**
+     * @param directory the directory containing the images
+     * @param frameRate the rate at which the images are meant to be played
+     */
+    public ImageDirectoryFrameSource(File directory, double frameRate) {
+        this.directory = directory;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Tell whether a file can be read by this source
+     *
+     * @param file the file to check
+     * @return <code>true</code> if the file has the extension of a supported
+     * image format
+     */
+    public static boolean isImage(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension))
+                return file.isFile();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean open() {
+        File[] files = this.directory.listFiles();
+        if (files == null)
+            return false;
+
+        this.images = Arrays.stream(files).filter(ImageDirectoryFrameSource::isImage).sorted().toArray(File[]::new);
+        this.next = 0;
+
+        // the resolution is the one of the first image
+        if (this.images.length > 0) {
+            Mat first = imread(this.images[0].getPath());
+            this.width = first.cols();
+            this.height = first.rows();
+            first.deallocate();
+        }
+
+        return this.images.length > 0;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return this.images != null && this.images.length > 0;
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        while (this.isOpened() && this.next < this.images.length) {
+            Mat image = imread(this.images[this.next++].getPath());
+            try {
+                // skip the files that cannot be decoded
+                if (!image.empty()) {
+                    image.copyTo(frame);
+                    return true;
+                }
+            } finally {
+                image.deallocate();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the image file of the last frame read, if any
+     */
+    public File current() {
+        return this.next > 0 ? this.images[this.next - 1] : null;
+    }
+
+    @Override
+    public double frameRate() {
+        return this.frameRate;
+    }
+
+    @Override
+    public int width() {
+        return this.width;
+    }
+
+    @Override
+    public int height() {
+        return this.height;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        this.images = null;
+    }
+
+    @Override
+    public String toString() {
+        return "images in " + this.directory;
+    }
+
+}
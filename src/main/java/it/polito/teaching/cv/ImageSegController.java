@@ -1,29 +1,25 @@
 package it.polito.teaching.cv;
 
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.Slider;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_videoio;
 
-import java.io.ByteArrayInputStream;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
-
-import static org.bytedeco.javacpp.opencv_core.*;
-import static org.bytedeco.javacpp.opencv_imgcodecs.imencode;
-import static org.bytedeco.javacpp.opencv_imgproc.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The controller associated with the only view of our application. The
  * application logic is implemented here. It handles the button for
- * starting/stopping the camera, the acquired video stream, the relative
- * controls and the image segmentation process.
+ * starting/stopping the camera, the acquired video stream and the relative
+ * controls; the image segmentation process is delegated to a
+ * {@link SegmentationEngine}.
  *
  * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
  * @version 1.5 (2015-11-24)
@@ -43,19 +39,169 @@ public class ImageSegController {
     // canny threshold value
     @FXML
     private Slider threshold;
+    // derive the canny thresholds from the frame instead of the slider
+    @FXML
+    private CheckBox autoThreshold;
     // checkbox for enabling/disabling background removal
     @FXML
     private CheckBox dilateErode;
     // inverse the threshold value for background removal
     @FXML
     private CheckBox inverse;
-
-    // a timer for acquiring the video stream
-    private ScheduledExecutorService timer;
-    // the OpenCV object that performs the video capture
-    private opencv_videoio.VideoCapture capture = new opencv_videoio.VideoCapture();
+    // checkbox for enabling/disabling the adaptive background removal
+    @FXML
+    private CheckBox subtraction;
+
+    // the maximum number of frames waiting to be processed
+    private static final int RING_CAPACITY = Integer.getInteger("cv.ring.capacity", 4);
+    // what to do with new frames when the processing cannot keep up (by
+    // default, drop the oldest frames of live sources and read the other
+    // ones ahead without losing any)
+    private static final String BACKPRESSURE = System.getProperty("cv.backpressure");
+    // where frames come from, see FrameSources
+    private static final String SOURCE = System.getProperty("cv.source", "0");
+    // how the background is removed, see SegmentationBackend
+    private static final SegmentationBackend BACKEND = SegmentationBackend.parse(System.getProperty("cv.backend"),
+            SegmentationBackend.OPENCV);
+    // how the Hue threshold of the background removal is estimated, see
+    // HueStatistics (by default, exactly on every frame)
+    private static final int HUE_STRIDE = Integer.getInteger("cv.hue.stride", 1);
+    private static final int HUE_UPDATE_EVERY = Integer.getInteger("cv.hue.update", 1);
+    private static final double HUE_SMOOTHING = Double.parseDouble(System.getProperty("cv.hue.smoothing", "1"));
+    private static final double SCENE_CHANGE = Double.parseDouble(System.getProperty("cv.hue.scene", "0"));
+    // how many times smaller the background removal mask is computed (by
+    // default, at full resolution)
+    private static final int MASK_DOWNSCALE = Integer.getInteger("cv.mask.downscale", 1);
+    // the side of the tiles processed again only when they change (by
+    // default, every frame is processed entirely)
+    private static final int TILE_SIZE = Integer.getInteger("cv.tile.size", 0);
+    // the pyramid level where Canny finds the edges (by default, at full
+    // resolution)
+    private static final int CANNY_PYRAMID_LEVEL = Integer.getInteger("cv.canny.pyramid", 0);
+    // how many frames the median gray level of the automatic Canny
+    // thresholds is kept, unless the scene changes
+    private static final int CANNY_UPDATE_EVERY = Integer.getInteger("cv.canny.update", 30);
+    // how the adaptive background removal learns the background, see
+    // BackgroundSubtraction
+    private static final BackgroundModel BACKGROUND_MODEL = BackgroundModel.parse(System.getProperty("cv.bg.model"),
+            BackgroundModel.MOG2);
+    private static final int BACKGROUND_HISTORY = Integer.getInteger("cv.bg.history", 500);
+    private static final double LEARNING_RATE = Double.parseDouble(System.getProperty("cv.bg.learning", "-1"));
+    private static final int MODEL_UPDATE_EVERY = Integer.getInteger("cv.bg.update", 1);
+    // whether the background removal finds the blobs of its mask, and the
+    // smallest one kept instead of eroding it (by default, neither)
+    private static final boolean BLOB_STATISTICS = Boolean.getBoolean("cv.blobs");
+    private static final int MIN_BLOB_AREA = Integer.getInteger("cv.blobs.min.area", 0);
+    // segment one frame every N and move its mask to the others, until it
+    // drifts by more than the given pixels (by default, every frame)
+    private static final int KEYFRAME_EVERY = Integer.getInteger("cv.keyframe.every", 1);
+    private static final double MAX_DRIFT = Double.parseDouble(System.getProperty("cv.keyframe.drift", "2"));
+    // time the processing stages of one frame every N (0 to disable)
+    private static final int SAMPLE_EVERY = Integer.getInteger("cv.metrics.sample", 1);
+
+    // the threads acquiring and processing the video stream
+    private FramePipeline pipeline;
+    // the source of the video stream
+    private FrameSource source;
     // a flag to change the button behavior
     private boolean cameraActive;
+    // the latency of the processing stages
+    private final PipelineMetrics metrics = new PipelineMetrics(SAMPLE_EVERY);
+    // the image segmentation, run by the processing thread on the slots of
+    // the ring
+    private final SegmentationEngine engine = new SegmentationEngine(this.metrics, ForkJoinPool.commonPool(),
+            RING_CAPACITY + FrameRing.EXTRA_SLOTS);
+    // the current settings, published by the UI and read by the processing
+    // thread
+    private final AtomicReference<SegmentationParams> params = new AtomicReference<>(
+            SegmentationParams.builder()
+                    .backend(BACKEND)
+                    .hueStride(HUE_STRIDE)
+                    .hueUpdateEvery(HUE_UPDATE_EVERY)
+                    .hueSmoothing(HUE_SMOOTHING)
+                    .sceneChangeThreshold(SCENE_CHANGE)
+                    .maskDownscale(MASK_DOWNSCALE)
+                    .tileSize(TILE_SIZE)
+                    .cannyPyramidLevel(CANNY_PYRAMID_LEVEL)
+                    .cannyUpdateEvery(CANNY_UPDATE_EVERY)
+                    .backgroundModel(BACKGROUND_MODEL)
+                    .backgroundHistory(BACKGROUND_HISTORY)
+                    .learningRate(LEARNING_RATE)
+                    .modelUpdateEvery(MODEL_UPDATE_EVERY)
+                    .blobStatistics(BLOB_STATISTICS)
+                    .minBlobArea(MIN_BLOB_AREA)
+                    .keyframeEvery(KEYFRAME_EVERY)
+                    .maxDrift(MAX_DRIFT)
+                    .build());
+    // hands the processed frames over to the JavaFX Application Thread
+    private DisplayPublisher publisher;
+    // exposes the running pipeline over JMX
+    private PipelineMonitor monitor;
+
+    /**
+     * Initialize the controller, once the FXML controls are injected
+     */
+    @FXML
+    protected void initialize() {
+        // publish new settings whenever a control changes
+        ChangeListener<Object> settingsListener = new ChangeListener<Object>() {
+
+            @Override
+            public void changed(ObservableValue<?> observable, Object oldValue, Object newValue) {
+                publishParams();
+            }
+        };
+        this.canny.selectedProperty().addListener(settingsListener);
+        this.threshold.valueProperty().addListener(settingsListener);
+        this.autoThreshold.selectedProperty().addListener(settingsListener);
+        this.dilateErode.selectedProperty().addListener(settingsListener);
+        this.inverse.selectedProperty().addListener(settingsListener);
+        this.subtraction.selectedProperty().addListener(settingsListener);
+
+        // reject the -Dcv.* settings the background removal would ignore
+        // now, rather than when its checkbox is selected
+        this.params.get().toBuilder().mode(SegmentationMode.BACKGROUND_REMOVAL).build();
+        this.publishParams();
+    }
+
+    /**
+     * Take a snapshot of the controls for the processing thread; to be called
+     * on the JavaFX Application Thread
+     */
+    private void publishParams() {
+        SegmentationMode mode = SegmentationMode.NONE;
+        // handle edge detection
+        if (this.canny.isSelected()) {
+            mode = SegmentationMode.CANNY;
+        }
+        // foreground detection
+        else if (this.dilateErode.isSelected()) {
+            mode = SegmentationMode.BACKGROUND_REMOVAL;
+        }
+        // learned background
+        else if (this.subtraction.isSelected()) {
+            mode = SegmentationMode.BACKGROUND_SUBTRACTION;
+        }
+
+        // keep the settings changed over JMX in the meantime
+        double cannyThreshold = this.threshold.getValue();
+        boolean autoCanny = this.autoThreshold.isSelected();
+        boolean inverse = this.inverse.isSelected();
+        SegmentationParams current;
+        try {
+            do {
+                current = this.params.get();
+            } while (!this.params.compareAndSet(current, current.toBuilder()
+                    .mode(mode)
+                    .cannyThreshold(cannyThreshold)
+                    .autoCanny(autoCanny)
+                    .inverse(inverse)
+                    .build()));
+        } catch (IllegalArgumentException e) {
+            // e.g., a backend switched over JMX that ignores some settings
+            System.err.println("Cannot apply the settings: " + e.getMessage());
+        }
+    }
 
     /**
      * The action triggered by pushing the button on the GUI
@@ -71,32 +217,60 @@ public class ImageSegController {
             // disable setting checkboxes
             this.canny.setDisable(true);
             this.dilateErode.setDisable(true);
+            this.subtraction.setDisable(true);
 
             // start the video capture
-            this.capture.open(0);
+            this.source = FrameSources.fromSpec(SOURCE);
+            this.source.open();
 
             // is the video stream available?
-            if (this.capture.isOpened()) {
+            if (this.source.isOpened()) {
                 this.cameraActive = true;
 
-                // grab a frame every 33 ms (30 frames/sec)
-                Runnable frameGrabber = new Runnable() {
+                // acquire frames on a dedicated thread and process them on
+                // another one, as they arrive
+                FramePipeline.FrameHandler frameProcessor = new FramePipeline.FrameHandler() {
 
                     @Override
-                    public void run() {
-                        Image imageToShow = grabFrame();
-                        originalFrame.setImage(imageToShow);
+                    public void handle(opencv_core.Mat frame, long timestamp, long captureDuration) {
+                        processFrame(frame, timestamp, captureDuration);
                     }
                 };
 
-                this.timer = Executors.newSingleThreadScheduledExecutor();
-                this.timer.scheduleAtFixedRate(frameGrabber, 0, 33, TimeUnit.MILLISECONDS);
+                BackpressurePolicy policy = BackpressurePolicy.parse(BACKPRESSURE,
+                        this.source.isLive() ? BackpressurePolicy.DROP_OLDEST : BackpressurePolicy.BLOCK);
+                this.metrics.reset();
+                this.engine.reset();
+                this.pipeline = new FramePipeline(this.source, RING_CAPACITY, policy, this.metrics, frameProcessor);
+                this.publisher = new DisplayPublisher(this.originalFrame, this.pipeline.getCounters(), this.metrics);
+                // recordings are played in real time
+                this.pipeline.setPlaybackRate(1);
+                this.pipeline.start();
+
+                // a mode switched over JMX is shown by the checkboxes too,
+                // so that later changes of the controls keep it
+                this.monitor = new PipelineMonitor(this.source, this.pipeline, this.params) {
+
+                    @Override
+                    public void setSegmentationMode(String mode) {
+                        super.setSegmentationMode(mode);
+                        final SegmentationMode current = SegmentationMode.parse(mode);
+                        Platform.runLater(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                showMode(current);
+                            }
+                        });
+                    }
+                };
+                this.monitor.register();
 
                 // update the button content
                 this.cameraButton.setText("Stop Camera");
             } else {
                 // log the error
-                System.err.println("Failed to open the camera connection...");
+                System.err.println("Failed to open the camera connection (" + this.source + ")...");
             }
         } else {
             // the camera is not active at this point
@@ -106,165 +280,75 @@ public class ImageSegController {
             // enable setting checkboxes
             this.canny.setDisable(false);
             this.dilateErode.setDisable(false);
-            // stop the timer
+            this.subtraction.setDisable(false);
+            // stop the frame acquisition and processing
+            this.monitor.unregister();
             try {
-                this.timer.shutdown();
-                this.timer.awaitTermination(33, TimeUnit.MILLISECONDS);
+                this.pipeline.stop(500, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 // log the exception
                 System.err.println("Exception in stopping the frame capture, trying to release the camera now... " + e);
             }
 
-            // release the camera
-            this.capture.release();
+            // release the camera and the frame buffers
+            this.source.close();
+            this.pipeline.close();
+            this.publisher.close();
             // clean the frame
             this.originalFrame.setImage(null);
         }
     }
 
     /**
-     * Get a frame from the opened video stream (if any)
+     * Process a frame acquired from the video stream and publish it for
+     * display
      *
-     * @return the {@link Image} to show
+     * @param frame           the current frame
+     * @param timestamp       when the frame has been acquired
+     * @param captureDuration the time taken to read the frame
      */
-    private Image grabFrame() {
-        // init everything
-        Image imageToShow = null;
-        opencv_core.Mat frame = new opencv_core.Mat();
-
-        // check if the capture is open
-        if (this.capture.isOpened()) {
-            try {
-                // read the current frame
-                this.capture.read(frame);
-
-                // if the frame is not empty, process it
-                if (!frame.empty()) {
-                    // handle edge detection
-                    if (this.canny.isSelected()) {
-                        frame = this.doCanny(frame);
-                    }
-                    // foreground detection
-                    else if (this.dilateErode.isSelected()) {
-                        frame = this.doBackgroundRemoval(frame);
-                    }
-
-                    // convert the Mat object (OpenCV) to Image (JavaFX)
-                    imageToShow = mat2Image(frame);
-                }
-
-            } catch (Exception e) {
-                // log the (full) error
-                System.err.print("ERROR");
-                e.printStackTrace();
-            }
-        }
-
-        return imageToShow;
-    }
-
-    /**
-     * Perform the operations needed for removing a uniform background
-     *
-     * @param frame the current frame
-     * @return an image with only foreground objects
-     */
-    private opencv_core.Mat doBackgroundRemoval(opencv_core.Mat frame) {
-        // init
-        opencv_core.Mat hsvImg = new opencv_core.Mat();
-        opencv_core.MatVector hsvPlanes = new opencv_core.MatVector();
-        opencv_core.Mat thresholdImg = new opencv_core.Mat();
-
-        int thresh_type = THRESH_BINARY_INV;
-        if (this.inverse.isSelected())
-            thresh_type = THRESH_BINARY;
-
-        // threshold the image with the average hue value
-        hsvImg.create(frame.size(), CV_8U);
-        cvtColor(frame, hsvImg, COLOR_BGR2HSV);
-        split(hsvImg, hsvPlanes);
-
-        // get the average hue value of the image
-        double threshValue = this.getHistAverage(hsvImg, hsvPlanes.get(0));
-
-        threshold(hsvPlanes.get(0), thresholdImg, threshValue, 179.0, thresh_type);
-
-        blur(thresholdImg, thresholdImg, new opencv_core.Size(5, 5));
-
-        // dilate to fill gaps, erode to smooth edges
-        dilate(thresholdImg, thresholdImg, new opencv_core.Mat(), new opencv_core.Point(-1, -1), 1, BORDER_CONSTANT, opencv_core.Scalar.all(0));
-        erode(thresholdImg, thresholdImg, new opencv_core.Mat(), new opencv_core.Point(-1, -1), 3, BORDER_CONSTANT, opencv_core.Scalar.all(0));
-
-        threshold(thresholdImg, thresholdImg, threshValue, 179.0, THRESH_BINARY);
-
-        // create the new image
-        opencv_core.Mat foreground = new opencv_core.Mat(frame.size(), CV_8UC3, Scalar.all(255));
-        frame.copyTo(foreground, thresholdImg);
-
-        return foreground;
+    private void processFrame(opencv_core.Mat frame, long timestamp, long captureDuration) {
+        // report slow frames to the flight recorder, if enabled
+        FrameEvent event = FrameEvent.start();
+        long start = event != null ? System.nanoTime() : 0;
+
+        // one consistent snapshot of the settings for the whole frame
+        SegmentationParams params = this.params.get();
+        opencv_core.Mat result = this.engine.process(frame, params);
+        long processed = event != null ? System.nanoTime() : 0;
+
+        // convert the Mat object (OpenCV) for JavaFX, the image is updated on
+        // the JavaFX Application Thread
+        this.publisher.publish(result, timestamp);
+
+        if (event != null)
+            FrameEvent.finish(event, frame, params.getMode(), timestamp, captureDuration, start,
+                    processed - start, System.nanoTime() - processed);
     }
 
     /**
-     * Get the average hue value of the image starting from its Hue channel
-     * histogram
+     * Select the checkbox of a segmentation mode, as if clicked; to be called
+     * on the JavaFX Application Thread
      *
-     * @param hsvImg    the current frame in HSV
-     * @param hueValues the Hue component of the current frame
-     * @return the average Hue value
+     * @param mode the mode to show
      */
-    private double getHistAverage(Mat hsvImg, Mat hueValues) {
-        // init
-        double average = 0.0;
-        Mat hist_hue = new Mat();
-        // 0-180: range of Hue values
-        int[] histSize = new int[]{180};
-        MatVector hue = new MatVector();
-        hue.put(new Mat[]{hueValues});
-
-        // compute the histogram
-        calcHist(hue, new int[]{0}, new Mat(), hist_hue, histSize, new float[]{0, 179});
-        FloatIndexer hist_hue_idx = hist_hue.createIndexer();
-
-        // get the average Hue value of the image
-        // (sum(bin(h)*h))/(image-height*image-width)
-        // -----------------
-        // equivalent to get the hue of each pixel in the image, add them, and
-        // divide for the image size (height and width)
-        for (int h = 0; h < 180; h++) {
-            // for each bin, get its value and multiply it for the corresponding
-            // hue
-            average += (hist_hue_idx.get(h, 0, 0) * h);
+    private void showMode(SegmentationMode mode) {
+        if (mode == SegmentationMode.CANNY) {
+            this.canny.setSelected(true);
+            this.cannySelected();
+        } else if (mode == SegmentationMode.BACKGROUND_REMOVAL) {
+            this.dilateErode.setSelected(true);
+            this.dilateErodeSelected();
+        } else if (mode == SegmentationMode.BACKGROUND_SUBTRACTION) {
+            this.subtraction.setSelected(true);
+            this.subtractionSelected();
+        } else {
+            this.canny.setSelected(false);
+            this.dilateErode.setSelected(false);
+            this.subtraction.setSelected(false);
+            this.enableThreshold(false);
+            this.inverse.setDisable(true);
         }
-
-        // return the average hue of the image
-        return average = average / hsvImg.size().height() / hsvImg.size().width();
-    }
-
-    /**
-     * Apply Canny
-     *
-     * @param frame the current frame
-     * @return an image elaborated with Canny
-     */
-    private Mat doCanny(Mat frame) {
-        // init
-        Mat grayImage = new Mat();
-        Mat detectedEdges = new Mat();
-
-        // convert to grayscale
-        cvtColor(frame, grayImage, COLOR_BGR2GRAY);
-
-        // reduce noise with a 3x3 kernel
-        blur(grayImage, detectedEdges, new Size(3, 3));
-
-        // canny detector, with ratio of lower:upper threshold of 3:1
-        Canny(detectedEdges, detectedEdges, this.threshold.getValue(), this.threshold.getValue() * 3);
-
-        // using Canny's output as a mask, display the result
-        Mat dest = new Mat();
-        frame.copyTo(dest, detectedEdges);
-
-        return dest;
     }
 
     /**
@@ -272,22 +356,42 @@ public class ImageSegController {
      */
     @FXML
     protected void cannySelected() {
-        // check whether the other checkbox is selected and deselect it
+        // check whether the other checkboxes are selected and deselect them
         if (this.dilateErode.isSelected()) {
             this.dilateErode.setSelected(false);
             this.inverse.setDisable(true);
         }
+        this.subtraction.setSelected(false);
 
         // enable the threshold slider
         if (this.canny.isSelected())
-            this.threshold.setDisable(false);
+            this.enableThreshold(true);
         else
-            this.threshold.setDisable(true);
+            this.enableThreshold(false);
 
         // now the capture can start
         this.cameraButton.setDisable(false);
     }
 
+    /**
+     * Action triggered when the automatic threshold checkbox is selected
+     */
+    @FXML
+    protected void autoThresholdSelected() {
+        this.enableThreshold(this.canny.isSelected());
+    }
+
+    /**
+     * Enable or disable the Canny threshold controls; the slider stays
+     * disabled while the threshold is automatic
+     *
+     * @param enabled whether Canny is selected
+     */
+    private void enableThreshold(boolean enabled) {
+        this.autoThreshold.setDisable(!enabled);
+        this.threshold.setDisable(!enabled || this.autoThreshold.isSelected());
+    }
+
     /**
      * Action triggered when the "background removal" checkbox is selected
      */
@@ -297,8 +401,9 @@ public class ImageSegController {
         // its slider
         if (this.canny.isSelected()) {
             this.canny.setSelected(false);
-            this.threshold.setDisable(true);
+            this.enableThreshold(false);
         }
+        this.subtraction.setSelected(false);
 
         if (this.dilateErode.isSelected())
             this.inverse.setDisable(false);
@@ -310,20 +415,23 @@ public class ImageSegController {
     }
 
     /**
-     * Convert a Mat object (OpenCV) in the corresponding Image for JavaFX
-     *
-     * @param frame the {@link Mat} representing the current frame
-     * @return the {@link Image} to show
+     * Action triggered when the "adaptive background removal" checkbox is
+     * selected
      */
-    private Image mat2Image(Mat frame) {
-        // create a temporary buffer
-        byte[] buffer = new byte[frame.cols() * frame.rows() * frame.channels()];
-        // encode the frame in the buffer, according to the PNG format
-        imencode(".png", frame, buffer);
-
-        // build and return an Image created from the image encoded in the
-        // buffer
-        return new Image(new ByteArrayInputStream(buffer));
+    @FXML
+    protected void subtractionSelected() {
+        // deselect the other checkboxes and disable their controls
+        if (this.canny.isSelected()) {
+            this.canny.setSelected(false);
+            this.enableThreshold(false);
+        }
+        if (this.dilateErode.isSelected()) {
+            this.dilateErode.setSelected(false);
+            this.inverse.setDisable(true);
+        }
+
+        // now the capture can start
+        this.cameraButton.setDisable(false);
     }
 
 }
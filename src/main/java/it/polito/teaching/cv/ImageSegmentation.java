@@ -7,6 +7,10 @@ import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 
 public class ImageSegmentation extends Application {
+
+    // the optional Prometheus endpoint (-Dcv.metrics.port)
+    private MetricsHttpServer metricsServer;
+
     /**
      * The main class for a JavaFX application. It creates and handle the main
      * window with its resources (style, graphics, etc.).
@@ -20,6 +24,7 @@ public class ImageSegmentation extends Application {
      */
     @Override
     public void start(Stage primaryStage) {
+        this.metricsServer = MetricsHttpServer.fromSystemProperties();
         try {
             // load the FXML resource
             BorderPane root = (BorderPane) FXMLLoader.load(getClass().getResource("/ImageSeg.fxml"));
@@ -39,6 +44,12 @@ public class ImageSegmentation extends Application {
         }
     }
 
+    @Override
+    public void stop() {
+        if (this.metricsServer != null)
+            this.metricsServer.stop();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
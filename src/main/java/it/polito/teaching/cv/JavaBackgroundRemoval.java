@@ -0,0 +1,396 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * The background removal of {@link SegmentationEngine} implemented in Java
+ * over primitive arrays, giving the same result as the OpenCV calls:
+ * <ol>
+ * <li>the BGR frame is read once, computing only its Hue plane (with the
+ * integer arithmetic of <code>cvtColor(COLOR_BGR2HSV)</code>) and its
+ * histogram in the same pass;</li>
+ * <li>the first threshold, the 5x5 blur, the 3x3 dilation and the 7x7
+ * erosion (three 3x3 iterations) are computed on a one byte per pixel mask,
+ * each separable filter as a row pass and a column pass;</li>
+ * <li>the second threshold is merged with the composition of the output
+ * frame.</li>
+ * </ol>
+ * The fused kernels ({@link #readHistogram(Mat)}, {@link #thresholdHue(double,
+ * boolean)}, {@link #composeHue(double, boolean, Mat)}) skip the Hue plane
+ * altogether: the Hue is computed again from the BGR pixels in the pass
+ * that needs it, and without morphology the output is written straight
+ * from the frame in a single pass after the histogram.
+ * <p>
+ * The loops are plain indexed loops over arrays, which the JIT compiler can
+ * unroll and vectorize. All the arrays are reused as long as the resolution
+ * does not change. An instance must be used by one thread at a time.
+ *
+ * @since 1.6
+ */
+class JavaBackgroundRemoval {
+
+    // cvtColor(COLOR_BGR2HSV) on 8 bit images: fixed point with 12 bits
+    private static final int HSV_SHIFT = 12;
+    private static final int HSV_ROUND = 1 << (HSV_SHIFT - 1);
+    // (180 << HSV_SHIFT) / (6 * diff), rounded
+    private static final int[] HDIV_TABLE = new int[256];
+    // the rounded mean of a 5x5 window, by sum
+    private static final byte[] BLUR_TABLE = new byte[25 * 255 + 1];
+    // the output value of the masks (the maxval of the thresholds)
+    private static final byte MASK_ON = (byte) 179;
+    private static final byte WHITE = (byte) 255;
+
+    static {
+        for (int i = 1; i < HDIV_TABLE.length; i++)
+            HDIV_TABLE[i] = (int) Math.rint((180 << HSV_SHIFT) / (6.0 * i));
+        for (int i = 0; i < BLUR_TABLE.length; i++)
+            BLUR_TABLE[i] = (byte) Math.rint(i / 25.0);
+    }
+
+    // the frame size
+    private int rows;
+    private int cols;
+
+    // the BGR frame, its Hue plane and the mask
+    private byte[] bgr = new byte[0];
+    private byte[] hue = new byte[0];
+    private byte[] mask = new byte[0];
+    // a second mask, for the passes that cannot work in place
+    private byte[] rowPass = new byte[0];
+    // the column sums of the blur
+    private int[] columnSums = new int[0];
+    // the output frame
+    private byte[] output = new byte[0];
+    // the Hue histogram, hues of 179 excluded as by calcHist
+    private final int[] histogram = new int[180];
+
+    /**
+     * Read a BGR frame, computing its Hue plane and histogram
+     *
+     * @param frame a frame of type <code>CV_8UC3</code>
+     */
+    void readHue(Mat frame) {
+        this.read(frame);
+        byte[] bgr = this.bgr;
+        byte[] hue = this.hue;
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        for (int i = 0, p = 0; i < hue.length; i++, p += 3) {
+            int h = hueOf(bgr[p] & 0xFF, bgr[p + 1] & 0xFF, bgr[p + 2] & 0xFF);
+            hue[i] = (byte) h;
+            if (h < 179)
+                histogram[h]++;
+        }
+    }
+
+    /**
+     * Read a BGR frame and compute only its Hue histogram: the fused kernels
+     * compute the Hue again when needed, which is cheaper than writing and
+     * reading a Hue plane
+     *
+     * @param frame a frame of type <code>CV_8UC3</code>
+     */
+    void readHistogram(Mat frame) {
+        this.read(frame);
+        byte[] bgr = this.bgr;
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        for (int p = 0; p < bgr.length; p += 3) {
+            int h = hueOf(bgr[p] & 0xFF, bgr[p + 1] & 0xFF, bgr[p + 2] & 0xFF);
+            if (h < 179)
+                histogram[h]++;
+        }
+    }
+
+    /**
+     * Compute the Hue of a pixel as <code>cvtColor(COLOR_BGR2HSV)</code>
+     * does
+     *
+     * @return the Hue, between 0 and 179
+     */
+    static int hueOf(int b, int g, int r) {
+        int v = Math.max(b, Math.max(g, r));
+        int diff = v - Math.min(b, Math.min(g, r));
+        int h;
+        if (v == r)
+            h = g - b;
+        else if (v == g)
+            h = b - r + 2 * diff;
+        else
+            h = r - g + 4 * diff;
+        h = (h * HDIV_TABLE[diff] + HSV_ROUND) >> HSV_SHIFT;
+        return h < 0 ? h + 180 : h;
+    }
+
+    /**
+     * Get the average Hue of the frame from its histogram, with the same
+     * arithmetic as {@link SegmentationEngine#getHistAverage()}
+     *
+     * @return the average Hue value
+     */
+    double histAverage() {
+        double average = 0.0;
+        for (int h = 0; h < 180; h++)
+            average += ((float) this.histogram[h] * h);
+        return average / this.rows / this.cols;
+    }
+
+    /**
+     * Threshold the Hue plane into the mask, as
+     * <code>threshold(hue, mask, threshValue, 179, THRESH_BINARY_INV)</code>
+     * (or <code>THRESH_BINARY</code> if inverse)
+     *
+     * @param threshValue the threshold
+     * @param inverse     whether to keep the Hue values above the threshold
+     */
+    void threshold(double threshValue, boolean inverse) {
+        // the threshold of 8 bit images is an integer
+        int thresh = (int) Math.floor(threshValue);
+        byte above = inverse ? MASK_ON : 0;
+        byte below = inverse ? 0 : MASK_ON;
+        byte[] hue = this.hue;
+        byte[] mask = this.mask;
+        for (int i = 0; i < mask.length; i++)
+            mask[i] = (hue[i] & 0xFF) > thresh ? above : below;
+    }
+
+    /**
+     * Threshold the Hue of the frame into the mask, computing it again from
+     * the BGR pixels, as {@link #threshold(double, boolean)} does on the Hue
+     * plane
+     *
+     * @param threshValue the threshold
+     * @param inverse     whether to keep the Hue values above the threshold
+     */
+    void thresholdHue(double threshValue, boolean inverse) {
+        int thresh = (int) Math.floor(threshValue);
+        byte above = inverse ? MASK_ON : 0;
+        byte below = inverse ? 0 : MASK_ON;
+        byte[] bgr = this.bgr;
+        byte[] mask = this.mask;
+        for (int i = 0, p = 0; i < mask.length; i++, p += 3) {
+            int h = hueOf(bgr[p] & 0xFF, bgr[p + 1] & 0xFF, bgr[p + 2] & 0xFF);
+            mask[i] = h > thresh ? above : below;
+        }
+    }
+
+    /**
+     * Blur the mask with a normalized 5x5 box filter, reflecting the border
+     * (<code>BORDER_REFLECT_101</code>)
+     */
+    void blur() {
+        int rows = this.rows;
+        int cols = this.cols;
+        byte[] mask = this.mask;
+        byte[] out = this.rowPass;
+        int[] sums = this.columnSums;
+
+        // column sums of the window around the first row
+        Arrays.fill(sums, 0);
+        for (int dy = -2; dy <= 2; dy++) {
+            int offset = reflect(dy, rows) * cols;
+            for (int x = 0; x < cols; x++)
+                sums[x] += mask[offset + x] & 0xFF;
+        }
+
+        for (int y = 0; y < rows; y++) {
+            // the row sums of the column sums
+            int offset = y * cols;
+            int sum = 0;
+            for (int dx = -2; dx <= 2; dx++)
+                sum += sums[reflect(dx, cols)];
+            out[offset] = BLUR_TABLE[sum];
+            for (int x = 1; x < cols; x++) {
+                sum += sums[reflect(x + 2, cols)] - sums[reflect(x - 3, cols)];
+                out[offset + x] = BLUR_TABLE[sum];
+            }
+
+            // slide the window down
+            if (y + 1 < rows) {
+                int added = reflect(y + 3, rows) * cols;
+                int removed = reflect(y - 2, rows) * cols;
+                for (int x = 0; x < cols; x++)
+                    sums[x] += (mask[added + x] & 0xFF) - (mask[removed + x] & 0xFF);
+            }
+        }
+
+        this.rowPass = mask;
+        this.mask = out;
+    }
+
+    /**
+     * Dilate the mask with a 3x3 rectangle; the border is black, so it never
+     * wins the maximum
+     */
+    void dilate() {
+        int rows = this.rows;
+        int cols = this.cols;
+        byte[] mask = this.mask;
+        byte[] tmp = this.rowPass;
+
+        for (int y = 0, offset = 0; y < rows; y++, offset += cols) {
+            for (int x = 0; x < cols; x++) {
+                int value = mask[offset + x] & 0xFF;
+                if (x > 0)
+                    value = Math.max(value, mask[offset + x - 1] & 0xFF);
+                if (x + 1 < cols)
+                    value = Math.max(value, mask[offset + x + 1] & 0xFF);
+                tmp[offset + x] = (byte) value;
+            }
+        }
+        for (int y = 0, offset = 0; y < rows; y++, offset += cols) {
+            int above = y > 0 ? offset - cols : offset;
+            int below = y + 1 < rows ? offset + cols : offset;
+            for (int x = 0; x < cols; x++) {
+                int value = Math.max(tmp[offset + x] & 0xFF,
+                        Math.max(tmp[above + x] & 0xFF, tmp[below + x] & 0xFF));
+                mask[offset + x] = (byte) value;
+            }
+        }
+    }
+
+    /**
+     * Erode the mask three times with a 3x3 rectangle, i.e., once with a 7x7
+     * rectangle as OpenCV does; the border is black, so the 3 pixels along
+     * the edges of the frame are always cleared
+     */
+    void erode() {
+        int rows = this.rows;
+        int cols = this.cols;
+        byte[] mask = this.mask;
+        byte[] tmp = this.rowPass;
+
+        for (int y = 0, offset = 0; y < rows; y++, offset += cols) {
+            for (int x = 0; x < cols; x++) {
+                int value = 0;
+                if (x >= 3 && x + 3 < cols) {
+                    value = mask[offset + x - 3] & 0xFF;
+                    for (int dx = -2; dx <= 3; dx++)
+                        value = Math.min(value, mask[offset + x + dx] & 0xFF);
+                }
+                tmp[offset + x] = (byte) value;
+            }
+        }
+        for (int y = 0, offset = 0; y < rows; y++, offset += cols) {
+            if (y < 3 || y + 3 >= rows) {
+                Arrays.fill(mask, offset, offset + cols, (byte) 0);
+                continue;
+            }
+            for (int x = 0; x < cols; x++) {
+                int value = tmp[offset + x - 3 * cols] & 0xFF;
+                for (int dy = -2; dy <= 3; dy++)
+                    value = Math.min(value, tmp[offset + x + dy * cols] & 0xFF);
+                mask[offset + x] = (byte) value;
+            }
+        }
+    }
+
+    /**
+     * Threshold the mask again and compose the output frame: the pixels
+     * whose mask is above the threshold are copied, the others are white
+     *
+     * @param threshValue the threshold
+     * @param foreground  the output frame, of the same size and type as the
+     *                    input one
+     */
+    void compose(double threshValue, Mat foreground) {
+        int thresh = (int) Math.floor(threshValue);
+        byte[] bgr = this.bgr;
+        byte[] mask = this.mask;
+        byte[] out = this.output;
+        for (int i = 0, p = 0; i < mask.length; i++, p += 3) {
+            if ((mask[i] & 0xFF) > thresh) {
+                out[p] = bgr[p];
+                out[p + 1] = bgr[p + 1];
+                out[p + 2] = bgr[p + 2];
+            } else {
+                out[p] = WHITE;
+                out[p + 1] = WHITE;
+                out[p + 2] = WHITE;
+            }
+        }
+        foreground.data().put(out, 0, out.length);
+    }
+
+    /**
+     * The fused kernel of the background removal without morphology: compute
+     * the Hue of each pixel, compare it with the threshold and write either
+     * the pixel or white, with no intermediate mask
+     *
+     * @param threshValue the threshold
+     * @param inverse     whether to keep the Hue values above the threshold
+     * @param foreground  the output frame, of the same size and type as the
+     *                    input one
+     */
+    void composeHue(double threshValue, boolean inverse, Mat foreground) {
+        int thresh = (int) Math.floor(threshValue);
+        byte[] bgr = this.bgr;
+        byte[] out = this.output;
+        for (int p = 0; p < bgr.length; p += 3) {
+            byte b = bgr[p];
+            byte g = bgr[p + 1];
+            byte r = bgr[p + 2];
+            if (hueOf(b & 0xFF, g & 0xFF, r & 0xFF) > thresh == inverse) {
+                out[p] = b;
+                out[p + 1] = g;
+                out[p + 2] = r;
+            } else {
+                out[p] = WHITE;
+                out[p + 1] = WHITE;
+                out[p + 2] = WHITE;
+            }
+        }
+        foreground.data().put(out, 0, out.length);
+    }
+
+    /**
+     * Copy the pixels of a frame into the BGR array, without computing any
+     * statistics
+     *
+     * @param frame a frame of type <code>CV_8UC3</code>
+     */
+    void read(Mat frame) {
+        this.ensure(frame.rows(), frame.cols());
+        if (frame.isContinuous()) {
+            frame.data().get(this.bgr, 0, this.bgr.length);
+        } else {
+            int stride = this.cols * 3;
+            for (int y = 0; y < this.rows; y++)
+                frame.ptr(y).get(this.bgr, y * stride, stride);
+        }
+    }
+
+    /**
+     * Index a row or a column mirrored across the border, without repeating
+     * the border itself (<code>BORDER_REFLECT_101</code>)
+     */
+    private static int reflect(int i, int length) {
+        if (length == 1)
+            return 0;
+        while (i < 0 || i >= length)
+            i = i < 0 ? -i : 2 * length - 2 - i;
+        return i;
+    }
+
+    /**
+     * Make the arrays fit a frame, allocating them only if its size differs
+     * from the previous one
+     */
+    private void ensure(int rows, int cols) {
+        if (rows == this.rows && cols == this.cols)
+            return;
+
+        this.rows = rows;
+        this.cols = cols;
+        int pixels = rows * cols;
+        this.bgr = new byte[pixels * 3];
+        this.hue = new byte[pixels];
+        this.mask = new byte[pixels];
+        this.rowPass = new byte[pixels];
+        this.columnSums = new int[cols];
+        this.output = new byte[pixels * 3];
+    }
+
+}
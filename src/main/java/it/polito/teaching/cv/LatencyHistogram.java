@@ -0,0 +1,157 @@
+package it.polito.teaching.cv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory histogram of durations, in nanoseconds.
+ * <p>
+ * Buckets are log-linear: every power of two is split into 16 buckets, so
+ * any recorded value is known within about 6%, from 1 ns up to more than an
+ * hour, with 640 counters. Recording is lock-free and allocation-free and
+ * can happen from several threads while others read the percentiles.
+ *
+ * @since 1.6
+ */
+public class LatencyHistogram {
+
+    // 2^SUB_BITS buckets per power of two
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // the largest tracked power of two, about 73 minutes
+    private static final int MAX_EXPONENT = 42;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     *
+     * @param nanos the duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        this.counts.incrementAndGet(bucket(nanos));
+        this.count.incrementAndGet();
+        this.total.addAndGet(nanos);
+
+        long current;
+        while (nanos > (current = this.max.get()) && !this.max.compareAndSet(current, nanos)) {
+            // retry
+        }
+    }
+
+    /**
+     * Get the bucket of a value
+     */
+    static int bucket(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Get the largest value falling in a bucket
+     *
+     * @param bucket the bucket index
+     * @return the upper bound of the bucket, in nanoseconds
+     */
+    public static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((long) (SUB_COUNT + sub) << (exponent - SUB_BITS)) + width - 1;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public static int bucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @param bucket the bucket index
+     * @return the number of values recorded in the bucket
+     */
+    public long countAt(int bucket) {
+        return this.counts.get(bucket);
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values
+     * fall
+     *
+     * @param percentile the percentage, between 0 and 100
+     * @return the value, in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = this.count.get();
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= target)
+                return Math.min(bucketUpperBound(i), this.max.get());
+        }
+        return this.max.get();
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long count() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the sum of the recorded values, in nanoseconds
+     */
+    public long total() {
+        return this.total.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, in nanoseconds
+     */
+    public double mean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : (double) this.total.get() / count;
+    }
+
+    /**
+     * @return the largest recorded value, in nanoseconds
+     */
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Forget all the recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            this.counts.set(i, 0);
+        this.count.set(0);
+        this.total.set(0);
+        this.max.set(0);
+    }
+
+}
@@ -0,0 +1,206 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+import static org.bytedeco.javacpp.opencv_video.calcOpticalFlowPyrLK;
+
+/**
+ * The mask of a keyframe, moved along with the foreground to the following
+ * frames instead of segmenting them: for smooth footage, where the mask
+ * changes little from one frame to the next.
+ * <p>
+ * On a keyframe, up to {@value #MAX_POINTS} corners are chosen inside the
+ * mask. On each following frame they are tracked from the previous frame
+ * with the pyramidal Lucas-Kanade optical flow, and the mask of the keyframe
+ * is translated by the sum of the median motions of the tracked corners.
+ * The spread of the motions around their median, summed since the keyframe,
+ * is the drift of the propagation (in pixels): a new keyframe is due when it
+ * exceeds the limit, when the period between keyframes is over, or when
+ * fewer than half of the corners are still tracked (e.g., a change of
+ * scene). A mask with too few corners to track is kept as it is until the
+ * next keyframe.
+ * <p>
+ * An instance keeps the state of one video stream and must be used by one
+ * thread at a time.
+ *
+ * @since 1.6
+ */
+class MaskPropagation {
+
+    /**
+     * The largest number of corners tracked
+     */
+    static final int MAX_POINTS = 200;
+    // the fewest corners worth tracking
+    private static final int MIN_POINTS = 8;
+    private static final double MIN_TRACKED_FRACTION = 0.5;
+
+    // the mask of the keyframe, and the one moved to the current frame
+    private final Mat keyMask = new Mat();
+    private final Mat mask = new Mat();
+    // the gray levels of the previous and the current frame
+    private Mat previousGray = new Mat();
+    private Mat gray = new Mat();
+    // the tracked corners and their optical flow
+    private final Mat points = new Mat();
+    private final Mat nextPoints = new Mat();
+    private final Mat status = new Mat();
+    private final Mat error = new Mat();
+    private final Mat translation = new Mat(2, 3, CV_64F);
+    private final Scalar black = Scalar.all(0);
+    private final float[] dx = new float[MAX_POINTS];
+    private final float[] dy = new float[MAX_POINTS];
+    private final float[] kept = new float[2 * MAX_POINTS];
+    private final float[] sorted = new float[MAX_POINTS];
+
+    // the keyframe settings, and the propagation since the keyframe
+    private SegmentationParams keyParams;
+    private int frames;
+    private boolean lost = true;
+    private double x;
+    private double y;
+    private double drift;
+
+    /**
+     * @param frame  the current frame
+     * @param params the settings of the frame
+     * @return <code>true</code> if the frame must be segmented as a keyframe
+     */
+    boolean isKeyframeDue(Mat frame, SegmentationParams params) {
+        return this.lost
+                || params != this.keyParams
+                || this.frames >= params.getKeyframeEvery()
+                || this.drift > params.getMaxDrift()
+                || frame.rows() != this.keyMask.rows() || frame.cols() != this.keyMask.cols();
+    }
+
+    /**
+     * Start the propagation from a segmented frame
+     *
+     * @param frame  the keyframe, in BGR
+     * @param mask   its mask
+     * @param params its settings
+     */
+    void keyframe(Mat frame, Mat mask, SegmentationParams params) {
+        mask.copyTo(this.keyMask);
+        cvtColor(frame, this.gray, COLOR_BGR2GRAY);
+        goodFeaturesToTrack(this.gray, this.points, MAX_POINTS, 0.01, 7, this.keyMask, 3, false, 0.04);
+
+        this.keyParams = params;
+        this.frames = 1;
+        this.lost = false;
+        this.x = this.y = this.drift = 0;
+        this.swapGray();
+    }
+
+    /**
+     * Move the mask of the keyframe to a frame
+     *
+     * @param frame the current frame, in BGR
+     * @return the moved mask, overwritten by the next frame, or
+     * <code>null</code> if the foreground has been lost and a keyframe is
+     * needed
+     */
+    Mat propagate(Mat frame) {
+        this.frames++;
+        cvtColor(frame, this.gray, COLOR_BGR2GRAY);
+
+        int count = this.points.rows();
+        if (count >= MIN_POINTS) {
+            calcOpticalFlowPyrLK(this.previousGray, this.gray, this.points, this.nextPoints, this.status, this.error);
+            FloatBuffer from = this.points.createBuffer();
+            FloatBuffer to = this.nextPoints.createBuffer();
+            ByteBuffer tracked = this.status.createBuffer();
+
+            int good = 0;
+            for (int i = 0; i < count; i++) {
+                if (tracked.get(i) == 0)
+                    continue;
+                this.dx[good] = to.get(2 * i) - from.get(2 * i);
+                this.dy[good] = to.get(2 * i + 1) - from.get(2 * i + 1);
+                this.kept[2 * good] = to.get(2 * i);
+                this.kept[2 * good + 1] = to.get(2 * i + 1);
+                good++;
+            }
+            if (good < MIN_POINTS || good < MIN_TRACKED_FRACTION * count) {
+                this.lost = true;
+                this.swapGray();
+                return null;
+            }
+
+            // the median motion, and the spread of the motions around it
+            float medianX = this.median(this.dx, good);
+            float medianY = this.median(this.dy, good);
+            for (int i = 0; i < good; i++)
+                this.dx[i] = Math.abs(this.dx[i] - medianX) + Math.abs(this.dy[i] - medianY);
+            this.drift += this.median(this.dx, good);
+            this.x += medianX;
+            this.y += medianY;
+
+            // keep tracking the corners found
+            this.points.create(good, 1, CV_32FC2);
+            FloatBuffer points = this.points.createBuffer();
+            points.put(this.kept, 0, 2 * good);
+        }
+        this.swapGray();
+
+        DoubleBuffer m = this.translation.createBuffer();
+        m.put(0, 1).put(1, 0).put(2, this.x).put(3, 0).put(4, 1).put(5, this.y);
+        warpAffine(this.keyMask, this.mask, this.translation, this.keyMask.size(), INTER_NEAREST,
+                BORDER_CONSTANT, this.black);
+        return this.mask;
+    }
+
+    /**
+     * @return the drift accumulated since the keyframe, in pixels
+     */
+    double drift() {
+        return this.drift;
+    }
+
+    /**
+     * Forget the keyframe, e.g., when the source changes
+     */
+    void reset() {
+        this.lost = true;
+        this.keyParams = null;
+    }
+
+    /**
+     * Release the native memory of the propagation
+     */
+    void close() {
+        this.reset();
+        this.keyMask.release();
+        this.mask.release();
+        this.previousGray.release();
+        this.gray.release();
+        this.points.release();
+        this.nextPoints.release();
+        this.status.release();
+        this.error.release();
+        this.translation.release();
+    }
+
+    private void swapGray() {
+        Mat previous = this.previousGray;
+        this.previousGray = this.gray;
+        this.gray = previous;
+    }
+
+    private float median(float[] values, int count) {
+        float[] sorted = this.sorted;
+        System.arraycopy(values, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        return sorted[count / 2];
+    }
+
+}
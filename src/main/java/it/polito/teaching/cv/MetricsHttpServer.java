@@ -0,0 +1,281 @@
+package it.polito.teaching.cv;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bytedeco.javacpp.Pointer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An embedded HTTP endpoint exporting the metrics of every running pipeline
+ * (see {@link PipelineMonitor#active()}) in the Prometheus text format, at
+ * <code>/metrics</code>:
+ * <ul>
+ * <li><code>cv_frames_total</code>, the frame counters, by state;</li>
+ * <li><code>cv_frames_per_second</code>, the processing rate;</li>
+ * <li><code>cv_queue_frames</code> and <code>cv_queue_capacity_frames</code>,
+ * the ring occupancy;</li>
+ * <li><code>cv_stage_latency_seconds</code>, a histogram per stage;</li>
+ * <li><code>cv_hue_threshold</code>, etc., one gauge per {@link Gauge}, or
+ * a counter with the <code>_total</code> suffix if it only increases
+ * (<code>cv_hue_updates_total</code>, etc.);</li>
+ * <li><code>cv_native_bytes</code>, the JavaCPP native memory.</li>
+ * </ul>
+ * The server listens on the loopback interface only and runs on its own
+ * thread: the exposition text is built from the counters and histograms the
+ * pipeline already keeps, so scraping allocates nothing on the frame path.
+ *
+ * @since 1.6
+ */
+public class MetricsHttpServer {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final Stage[] STAGES = Stage.values();
+    private static final Gauge[] GAUGES = Gauge.values();
+
+    // the bounds of the exported latency buckets, in seconds
+    private static final double[] BOUNDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1};
+    private static final String[] BOUND_LABELS = {"0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025",
+            "0.05", "0.1", "0.25", "0.5", "1"};
+    // the exported bucket of each LatencyHistogram bucket, BOUNDS.length for
+    // +Inf: a bucket is counted under the first bound above all its values
+    private static final int[] BUCKET_BOUND = new int[LatencyHistogram.bucketCount()];
+
+    static {
+        int bound = 0;
+        for (int i = 0; i < BUCKET_BOUND.length; i++) {
+            double upper = LatencyHistogram.bucketUpperBound(i) / 1e9;
+            while (bound < BOUNDS.length && upper > BOUNDS[bound])
+                bound++;
+            BUCKET_BOUND[i] = bound;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // reused by every scrape, guarded by this
+    private final StringBuilder text = new StringBuilder(16 * 1024);
+    private final long[] bucketCounts = new long[BOUNDS.length + 1];
+
+    /**
+     * Bind the server to a local port, without starting it
+     *
+     * @param port the port, 0 for any free one
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsHttpServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/metrics", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    /**
+     * Start the server configured by the <code>cv.metrics.port</code> system
+     * property, if any
+     *
+     * @return the started server, or <code>null</code> if not configured
+     */
+    public static MetricsHttpServer fromSystemProperties() {
+        Integer port = Integer.getInteger("cv.metrics.port");
+        if (port == null || port < 0)
+            return null;
+
+        try {
+            MetricsHttpServer server = new MetricsHttpServer(port);
+            server.start();
+            System.out.println("Metrics available at http://" + server.getAddress().getHostString() + ":"
+                    + server.getAddress().getPort() + "/metrics");
+            return server;
+        } catch (IOException e) {
+            // monitoring must never prevent the application from running
+            System.err.println("Cannot start the metrics endpoint on port " + port + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Start answering requests
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Stop the server, waiting at most one second for the running requests
+     */
+    public void stop() {
+        this.server.stop(1);
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return the address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return this.server.getAddress();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body;
+            synchronized (this) {
+                this.text.setLength(0);
+                this.render(this.text);
+                body = this.text.toString().getBytes(StandardCharsets.UTF_8);
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Write the exposition text of all the running pipelines
+     *
+     * @param out where to write
+     */
+    void render(StringBuilder out) {
+        Iterable<PipelineMonitor> monitors = PipelineMonitor.active();
+
+        header(out, "cv_frames_total", "counter", "Frames through the pipeline, by state");
+        for (PipelineMonitor monitor : monitors) {
+            FrameCounters counters = monitor.getPipeline().getCounters();
+            frames(out, monitor, "captured", counters.captured());
+            frames(out, monitor, "dropped_oldest", counters.droppedOldest());
+            frames(out, monitor, "dropped_newest", counters.droppedNewest());
+            frames(out, monitor, "processed", counters.processed());
+            frames(out, monitor, "failed", counters.failed());
+            frames(out, monitor, "displayed", counters.displayed());
+            frames(out, monitor, "coalesced", counters.coalesced());
+        }
+
+        header(out, "cv_frames_per_second", "gauge", "Processed frames per second over the last second");
+        for (PipelineMonitor monitor : monitors) {
+            labels(out.append("cv_frames_per_second"), monitor).append("} ")
+                    .append(monitor.getFramesPerSecond()).append('\n');
+        }
+
+        header(out, "cv_queue_frames", "gauge", "Frames waiting to be processed");
+        for (PipelineMonitor monitor : monitors)
+            labels(out.append("cv_queue_frames"), monitor).append("} ").append(monitor.getQueueDepth()).append('\n');
+
+        header(out, "cv_queue_capacity_frames", "gauge", "Maximum number of frames waiting to be processed");
+        for (PipelineMonitor monitor : monitors) {
+            labels(out.append("cv_queue_capacity_frames"), monitor).append("} ")
+                    .append(monitor.getQueueCapacity()).append('\n');
+        }
+
+        header(out, "cv_stage_latency_seconds", "histogram", "Latency of each stage of the pipeline");
+        for (PipelineMonitor monitor : monitors) {
+            PipelineMetrics metrics = monitor.getPipeline().getMetrics();
+            for (Stage stage : STAGES)
+                this.histogram(out, monitor, stage, metrics.histogram(stage));
+        }
+
+        for (Gauge gauge : GAUGES) {
+            String name = "cv_" + gauge.metricName() + (gauge.isCounter() ? "_total" : "");
+            header(out, name, gauge.isCounter() ? "counter" : "gauge", gauge.description());
+            for (PipelineMonitor monitor : monitors) {
+                labels(out.append(name), monitor).append("} ")
+                        .append(monitor.getPipeline().getMetrics().gauge(gauge)).append('\n');
+            }
+        }
+
+        header(out, "cv_native_bytes", "gauge", "Native memory of the process, as tracked by JavaCPP");
+        out.append("cv_native_bytes{kind=\"total\"} ").append(Pointer.totalBytes()).append('\n');
+        out.append("cv_native_bytes{kind=\"physical\"} ").append(Pointer.physicalBytes()).append('\n');
+        out.append("cv_native_bytes{kind=\"max\"} ").append(Pointer.maxBytes()).append('\n');
+    }
+
+    private void histogram(StringBuilder out, PipelineMonitor monitor, Stage stage, LatencyHistogram histogram) {
+        if (histogram.count() == 0)
+            return;
+
+        // fold the fine buckets into the exported ones; the count is their
+        // sum, so that it is consistent with them while frames are recorded
+        Arrays.fill(this.bucketCounts, 0);
+        for (int i = 0; i < BUCKET_BOUND.length; i++)
+            this.bucketCounts[BUCKET_BOUND[i]] += histogram.countAt(i);
+
+        long cumulative = 0;
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            cumulative += this.bucketCounts[i];
+            labels(out.append("cv_stage_latency_seconds_bucket"), monitor)
+                    .append(",stage=\"").append(stage.metricName()).append("\",le=\"")
+                    .append(i < BOUNDS.length ? BOUND_LABELS[i] : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        stageLabels(out.append("cv_stage_latency_seconds_sum"), monitor, stage).append("} ")
+                .append(histogram.total() / 1e9).append('\n');
+        stageLabels(out.append("cv_stage_latency_seconds_count"), monitor, stage).append("} ")
+                .append(cumulative).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void frames(StringBuilder out, PipelineMonitor monitor, String state, long value) {
+        labels(out.append("cv_frames_total"), monitor).append(",state=\"").append(state).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    private static StringBuilder stageLabels(StringBuilder out, PipelineMonitor monitor, Stage stage) {
+        return labels(out, monitor).append(",stage=\"").append(stage.metricName()).append('"');
+    }
+
+    /**
+     * Open the labels of a pipeline, to be closed by the caller
+     */
+    private static StringBuilder labels(StringBuilder out, PipelineMonitor monitor) {
+        out.append("{pipeline=\"").append(monitor.getName()).append("\",source=\"");
+        // escape the label value
+        String source = monitor.getSource();
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\\' || c == '"')
+                out.append('\\').append(c);
+            else if (c == '\n')
+                out.append("\\n");
+            else
+                out.append(c);
+        }
+        return out.append('"');
+    }
+
+}
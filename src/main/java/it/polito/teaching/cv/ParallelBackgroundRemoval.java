@@ -0,0 +1,301 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Rect;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The OpenCV background removal of {@link SegmentationEngine} run on
+ * horizontal stripes of the frame in a {@link ForkJoinPool}, with the same
+ * result as the serial calls, bit for bit.
+ * <p>
+ * Each stripe converts its rows plus {@value #HALO} halo rows on each side
+ * (2 for the 5x5 blur, 1 for the 3x3 dilation, 3 for the 7x7 erosion) into
+ * its own {@link SegmentationWorkspace}, so that filters never read the
+ * buffers of another stripe. The frame is processed in two parallel phases:
+ * <ol>
+ * <li>conversion to HSV and Hue histogram of the rows of each stripe, whose
+ * sum is the histogram of the whole frame;</li>
+ * <li>thresholds, blur, morphology and composition of each stripe, written
+ * into its own rows of the output frame.</li>
+ * </ol>
+ * The halo rows of a stripe are wrong near its borders (they lack their own
+ * neighbours), but the error moves inwards by one kernel radius per filter,
+ * so it never reaches the rows of the stripe; along the top and bottom of
+ * the frame the stripes see the same borders as the whole frame.
+ * <p>
+ * The views of the stripes in the frame are kept per frame buffer, see
+ * {@link FrameViews}. An instance must be used by one thread at a time.
+ *
+ * @since 1.6
+ */
+class ParallelBackgroundRemoval {
+
+    /**
+     * The rows each stripe needs on each side of its own
+     */
+    static final int HALO = 6;
+    // the smallest stripe worth its halo
+    private static final int MIN_STRIPE_ROWS = 4 * HALO;
+
+    private final ForkJoinPool pool;
+    private Stripe[] stripes = new Stripe[0];
+    // the rows of each stripe in the frames, with and without the halo
+    private Rect[] regions = new Rect[0];
+    // their views in the frames, kept for this number of frame buffers
+    private FrameViews frameViews;
+    private final int frameBuffers;
+    // the Hue histogram of the whole frame
+    private final float[] histogram = new float[180];
+
+    // the frames the stripes are laid out for
+    private int rows = -1;
+    private int cols = -1;
+    private int type = -1;
+    private Mat output;
+
+    // the arguments of the current phase, and the views of the frame
+    private Mat[] frame;
+    private boolean computeHistogram;
+    private double threshValue;
+    private boolean inverse;
+    private boolean morphology;
+
+    /**
+     * @param pool         where to process the stripes
+     * @param frameBuffers the number of frame buffers the frames come from
+     */
+    ParallelBackgroundRemoval(ForkJoinPool pool, int frameBuffers) {
+        this.pool = pool;
+        this.frameBuffers = frameBuffers;
+    }
+
+    /**
+     * Convert each stripe of a frame to HSV and, if asked, compute the Hue
+     * histogram of the frame
+     *
+     * @param frame            the current frame, in BGR
+     * @param output           where the result will be written, of the size
+     *                         and type of the frame
+     * @param computeHistogram whether the histogram is needed
+     */
+    void convert(Mat frame, Mat output, boolean computeHistogram) {
+        this.layout(frame, output);
+        this.frame = this.frameViews.of(frame);
+        this.computeHistogram = computeHistogram;
+        try {
+            this.pool.invoke(new StripeTask(0, this.stripes.length, false));
+        } finally {
+            this.frame = null;
+        }
+    }
+
+    /**
+     * Get the average Hue of the frame from the histograms of its stripes,
+     * with the same arithmetic as
+     * {@link SegmentationEngine#getHistAverage()}
+     *
+     * @return the average Hue value
+     */
+    double histAverage() {
+        float[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        for (Stripe stripe : this.stripes) {
+            FloatBuffer values = stripe.ws.histHueValues();
+            for (int h = 0; h < 180; h++)
+                histogram[h] += values.get(h);
+        }
+
+        double average = 0.0;
+        for (int h = 0; h < 180; h++)
+            average += (histogram[h] * h);
+        return average / this.rows / this.cols;
+    }
+
+    /**
+     * Threshold and smooth the mask of each stripe, and compose its rows of
+     * the output frame
+     *
+     * @param frame       the current frame, as given to
+     *                    {@link #convert(Mat, Mat, boolean)}
+     * @param threshValue the threshold
+     * @param inverse     whether to inverse the threshold
+     * @param morphology  whether to smooth the mask
+     */
+    void segment(Mat frame, double threshValue, boolean inverse, boolean morphology) {
+        this.frame = this.frameViews.of(frame);
+        this.threshValue = threshValue;
+        this.inverse = inverse;
+        this.morphology = morphology;
+        try {
+            this.pool.invoke(new StripeTask(0, this.stripes.length, true));
+        } finally {
+            this.frame = null;
+        }
+    }
+
+    /**
+     * Release the native memory of all the stripes
+     */
+    void close() {
+        for (Stripe stripe : this.stripes)
+            stripe.close();
+        this.stripes = new Stripe[0];
+        if (this.frameViews != null) {
+            this.frameViews.close();
+            this.frameViews = null;
+        }
+        for (Rect region : this.regions)
+            region.deallocate();
+        this.regions = new Rect[0];
+        this.rows = this.cols = this.type = -1;
+        this.output = null;
+    }
+
+    /**
+     * Split the frame into stripes, again only if its size or type changed
+     */
+    private void layout(Mat frame, Mat output) {
+        if (frame.rows() == this.rows && frame.cols() == this.cols && frame.type() == this.type
+                && output == this.output)
+            return;
+
+        this.close();
+        this.rows = frame.rows();
+        this.cols = frame.cols();
+        this.type = frame.type();
+        this.output = output;
+
+        int count = Math.max(1, Math.min(this.pool.getParallelism(), this.rows / MIN_STRIPE_ROWS));
+        this.stripes = new Stripe[count];
+        this.regions = new Rect[2 * count];
+        for (int i = 0; i < count; i++) {
+            int start = this.rows * i / count;
+            int end = this.rows * (i + 1) / count;
+            Stripe stripe = new Stripe(i, start, end, this.rows, output);
+            this.stripes[i] = stripe;
+            this.regions[2 * i] = new Rect(0, stripe.top, this.cols, stripe.bottom - stripe.top);
+            this.regions[2 * i + 1] = new Rect(0, start, this.cols, end - start);
+        }
+        this.frameViews = new FrameViews(this.frameBuffers, this.regions);
+    }
+
+    private void convert(Stripe stripe) {
+        Mat input = this.frame[2 * stripe.index];
+        SegmentationWorkspace ws = stripe.ws;
+        if (ws.ensure(input))
+            stripe.views();
+        cvtColor(input, ws.hsvImg, COLOR_BGR2HSV);
+        split(ws.hsvImg, ws.hsvPlanes);
+        if (this.computeHistogram)
+            calcHist(stripe.coreHue, ws.histChannels, ws.noMask, ws.histHue, ws.histSize, ws.histRanges);
+    }
+
+    private void segment(Stripe stripe) {
+        SegmentationWorkspace ws = stripe.ws;
+        Mat thresholdImg = ws.thresholdImg;
+        int threshType = this.inverse ? THRESH_BINARY : THRESH_BINARY_INV;
+
+        threshold(ws.huePlane, thresholdImg, this.threshValue, 179.0, threshType);
+        if (this.morphology) {
+            blur(thresholdImg, thresholdImg, ws.blurSize);
+            dilate(thresholdImg, thresholdImg, ws.defaultKernel, ws.defaultAnchor, 1, BORDER_CONSTANT, ws.black);
+            erode(thresholdImg, thresholdImg, ws.defaultKernel, ws.defaultAnchor, 3, BORDER_CONSTANT, ws.black);
+            threshold(thresholdImg, thresholdImg, this.threshValue, 179.0, THRESH_BINARY);
+        }
+
+        stripe.coreOutput.put(ws.white);
+        this.frame[2 * stripe.index + 1].copyTo(stripe.coreOutput, stripe.coreMask);
+    }
+
+    /**
+     * The rows of a stripe and its buffers
+     */
+    private static final class Stripe {
+
+        // the position of the stripe, its first and last (excluded) rows,
+        // and the ones of its halo
+        final int index;
+        final int start;
+        final int end;
+        final int top;
+        final int bottom;
+        final SegmentationWorkspace ws = new SegmentationWorkspace();
+        // the rows of the stripe in the workspace and in the output frame
+        final MatVector coreHue = new MatVector(1);
+        Mat coreHuePlane;
+        Mat coreMask;
+        final Mat coreOutput;
+
+        Stripe(int index, int start, int end, int rows, Mat output) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.top = Math.max(0, start - HALO);
+            this.bottom = Math.min(rows, end + HALO);
+            this.coreOutput = output.rowRange(start, end);
+        }
+
+        /**
+         * Point the views to the buffers of the workspace, once allocated
+         */
+        void views() {
+            this.releaseViews();
+            this.coreMask = this.ws.thresholdImg.rowRange(this.start - this.top, this.end - this.top);
+            this.coreHuePlane = this.ws.huePlane.rowRange(this.start - this.top, this.end - this.top);
+            this.coreHue.put(0, this.coreHuePlane);
+        }
+
+        void close() {
+            this.ws.close();
+            this.coreHue.deallocate();
+            this.releaseViews();
+            this.coreOutput.deallocate();
+        }
+
+        private void releaseViews() {
+            if (this.coreMask != null)
+                this.coreMask.deallocate();
+            if (this.coreHuePlane != null)
+                this.coreHuePlane.deallocate();
+        }
+    }
+
+    /**
+     * Run one of the phases on a range of stripes, splitting it in halves
+     */
+    private final class StripeTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+        private final boolean segment;
+
+        StripeTask(int from, int to, boolean segment) {
+            this.from = from;
+            this.to = to;
+            this.segment = segment;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > 1) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new StripeTask(this.from, middle, this.segment),
+                        new StripeTask(middle, this.to, this.segment));
+            } else if (this.segment) {
+                segment(stripes[this.from]);
+            } else {
+                convert(stripes[this.from]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package it.polito.teaching.cv;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latency of each {@link Stage} of a pipeline, recorded into
+ * {@link LatencyHistogram}s.
+ * <p>
+ * Timing a stage costs two {@link System#nanoTime()} calls and a few atomic
+ * increments, and can be sampled (one frame every N) to make it even
+ * cheaper, so it can stay enabled in production. Stages are timed by
+ * chaining the timestamps:
+ * <pre>
+ * long t = metrics.sampled(frameIndex) ? System.nanoTime() : 0;
+ * cvtColor(...);
+ * t = metrics.record(Stage.CVT_COLOR, t);
+ * blur(...);
+ * t = metrics.record(Stage.BLUR, t);
+ * </pre>
+ * where a zero timestamp means that the frame is not sampled.
+ * <p>
+ * The metrics also keep the last value of each {@link Gauge}.
+ *
+ * @since 1.6
+ */
+public class PipelineMetrics {
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final Gauge[] GAUGES = Gauge.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    // the bits of the double value of each gauge
+    private final AtomicLongArray gauges = new AtomicLongArray(GAUGES.length);
+    // time one frame every sampleEvery
+    private volatile int sampleEvery;
+
+    /**
+     * @param sampleEvery time one frame every <code>sampleEvery</code>, or
+     *                    none if 0
+     */
+    public PipelineMetrics(int sampleEvery) {
+        this.sampleEvery = sampleEvery;
+        for (int i = 0; i < this.histograms.length; i++)
+            this.histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Tell whether a frame has to be timed
+     *
+     * @param frameIndex the index of the frame, counted by the caller
+     * @return <code>true</code> if the stages of the frame must be recorded
+     */
+    public boolean sampled(long frameIndex) {
+        int every = this.sampleEvery;
+        return every > 0 && frameIndex % every == 0;
+    }
+
+    /**
+     * @return <code>true</code> if at least some frames are timed
+     */
+    public boolean isEnabled() {
+        return this.sampleEvery > 0;
+    }
+
+    /**
+     * Record the duration of a stage started at the given time
+     *
+     * @param stage the stage
+     * @param start the {@link System#nanoTime()} at the beginning of the
+     *              stage, or 0 if the frame is not sampled
+     * @return the current time, i.e., the start of the next stage, or 0 if
+     * the frame is not sampled
+     */
+    public long record(Stage stage, long start) {
+        if (start == 0)
+            return 0;
+
+        long now = System.nanoTime();
+        this.histograms[stage.ordinal()].record(now - start);
+        return now;
+    }
+
+    /**
+     * Record a duration measured by the caller
+     *
+     * @param stage the stage
+     * @param nanos the duration, in nanoseconds
+     */
+    public void recordValue(Stage stage, long nanos) {
+        this.histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param stage the stage
+     * @return the latency histogram of the stage
+     */
+    public LatencyHistogram histogram(Stage stage) {
+        return this.histograms[stage.ordinal()];
+    }
+
+    /**
+     * Set the value of a gauge
+     *
+     * @param gauge the gauge
+     * @param value its new value
+     */
+    public void setGauge(Gauge gauge, double value) {
+        this.gauges.set(gauge.ordinal(), Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Add to the value of a gauge, e.g., to count events; safe when several
+     * engines share the metrics
+     *
+     * @param gauge the gauge
+     * @param delta the value to add
+     */
+    public void addToGauge(Gauge gauge, double delta) {
+        int i = gauge.ordinal();
+        long current;
+        do {
+            current = this.gauges.get(i);
+        } while (!this.gauges.compareAndSet(i, current,
+                Double.doubleToRawLongBits(Double.longBitsToDouble(current) + delta)));
+    }
+
+    /**
+     * Set the value of a gauge if larger than the current one
+     *
+     * @param gauge the gauge
+     * @param value the candidate value
+     */
+    public void raiseGauge(Gauge gauge, double value) {
+        int i = gauge.ordinal();
+        long current;
+        while (value > Double.longBitsToDouble(current = this.gauges.get(i))
+                && !this.gauges.compareAndSet(i, current, Double.doubleToRawLongBits(value))) {
+            // retry
+        }
+    }
+
+    /**
+     * @param gauge the gauge
+     * @return the last value of the gauge, 0 if never set
+     */
+    public double gauge(Gauge gauge) {
+        return Double.longBitsToDouble(this.gauges.get(gauge.ordinal()));
+    }
+
+    /**
+     * @param sampleEvery time one frame every <code>sampleEvery</code>, or
+     *                    none if 0
+     */
+    public void setSampleEvery(int sampleEvery) {
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * @return how often frames are timed
+     */
+    public int getSampleEvery() {
+        return this.sampleEvery;
+    }
+
+    /**
+     * Forget all the recorded latencies and gauges
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : this.histograms)
+            histogram.reset();
+        for (int i = 0; i < GAUGES.length; i++)
+            this.gauges.set(i, 0);
+    }
+
+    /**
+     * @return a table of the latency percentiles of the recorded stages, in
+     * milliseconds, followed by the gauges that have been set
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%-12s %8s %8s %8s %8s %8s%n",
+                "stage", "count", "p50", "p90", "p99", "max"));
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = this.histograms[stage.ordinal()];
+            if (histogram.count() == 0)
+                continue;
+
+            report.append(String.format(Locale.ROOT, "%-12s %8d %8.3f %8.3f %8.3f %8.3f%n",
+                    stage.metricName(), histogram.count(),
+                    histogram.valueAtPercentile(50) / 1e6, histogram.valueAtPercentile(90) / 1e6,
+                    histogram.valueAtPercentile(99) / 1e6, histogram.max() / 1e6));
+        }
+        for (Gauge gauge : GAUGES) {
+            double value = this.gauge(gauge);
+            if (value != 0)
+                report.append(String.format(Locale.ROOT, "%-20s %12.3f%n", gauge.metricName(), value));
+        }
+        return report.toString();
+    }
+
+}
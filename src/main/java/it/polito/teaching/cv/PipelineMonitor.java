@@ -0,0 +1,345 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.Pointer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exposes a running {@link FramePipeline} over JMX: frame rate, frame
+ * counters, queue depth, stage latencies and JavaCPP native memory, plus
+ * switching the segmentation mode and resetting the statistics at runtime.
+ * <p>
+ * Every attribute is read from the counters and histograms the pipeline
+ * already keeps, so monitoring adds nothing to the frame path. The monitors
+ * currently registered are listed by {@link #active()}.
+ *
+ * @since 1.6
+ */
+public class PipelineMonitor implements PipelineMonitorMXBean {
+
+    private static final String DOMAIN = "it.polito.teaching.cv";
+    private static final Stage[] STAGES = Stage.values();
+    private static final Gauge[] GAUGES = Gauge.values();
+    // the minimum time over which the frame rate is measured
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+    private static final List<PipelineMonitor> ACTIVE = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final FrameSource source;
+    private final FramePipeline pipeline;
+    private final AtomicReference<SegmentationParams> params;
+    private ObjectName objectName;
+
+    // the last measure of the frame rate
+    private long rateTime = System.nanoTime();
+    private long rateFrames;
+    private double rate;
+
+    /**
+     * @param source   the source of the pipeline
+     * @param pipeline the monitored pipeline
+     * @param params   the settings read by the pipeline, changed by
+     *                 {@link #setSegmentationMode(String)}
+     */
+    public PipelineMonitor(FrameSource source, FramePipeline pipeline, AtomicReference<SegmentationParams> params) {
+        this.name = "pipeline-" + IDS.incrementAndGet();
+        this.source = source;
+        this.pipeline = pipeline;
+        this.params = params;
+    }
+
+    /**
+     * @return the monitors currently registered
+     */
+    public static List<PipelineMonitor> active() {
+        return Collections.unmodifiableList(ACTIVE);
+    }
+
+    /**
+     * Register this monitor in the platform MBean server. Failures are
+     * logged, since monitoring must never prevent the pipeline from running.
+     */
+    public void register() {
+        try {
+            this.objectName = new ObjectName(DOMAIN + ":type=Pipeline,name=" + this.name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, this.objectName);
+        } catch (JMException e) {
+            System.err.println("Cannot register the pipeline MBean: " + e);
+            this.objectName = null;
+        }
+        ACTIVE.add(this);
+    }
+
+    /**
+     * Remove this monitor from the MBean server, when the pipeline stops
+     */
+    public void unregister() {
+        ACTIVE.remove(this);
+        if (this.objectName == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            System.err.println("Cannot unregister the pipeline MBean: " + e);
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * @return the name of the pipeline, unique in this JVM
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the monitored pipeline
+     */
+    public FramePipeline getPipeline() {
+        return this.pipeline;
+    }
+
+    @Override
+    public String getSource() {
+        return String.valueOf(this.source);
+    }
+
+    @Override
+    public synchronized double getFramesPerSecond() {
+        long now = System.nanoTime();
+        long frames = this.pipeline.getCounters().processed();
+        long elapsed = now - this.rateTime;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            // statistics have been reset meanwhile
+            if (frames < this.rateFrames)
+                this.rateFrames = 0;
+            this.rate = (frames - this.rateFrames) * 1e9 / elapsed;
+            this.rateTime = now;
+            this.rateFrames = frames;
+        }
+        return this.rate;
+    }
+
+    @Override
+    public long getCapturedFrames() {
+        return this.pipeline.getCounters().captured();
+    }
+
+    @Override
+    public long getProcessedFrames() {
+        return this.pipeline.getCounters().processed();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return this.pipeline.getCounters().dropped();
+    }
+
+    @Override
+    public long getFailedFrames() {
+        return this.pipeline.getCounters().failed();
+    }
+
+    @Override
+    public long getDisplayedFrames() {
+        return this.pipeline.getCounters().displayed();
+    }
+
+    @Override
+    public long getCoalescedFrames() {
+        return this.pipeline.getCounters().coalesced();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return this.pipeline.getRing().occupancy();
+    }
+
+    @Override
+    public int getPeakQueueDepth() {
+        return this.pipeline.getRing().peakOccupancy();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return this.pipeline.getRing().capacity();
+    }
+
+    @Override
+    public String getBackpressurePolicy() {
+        return this.pipeline.getRing().policy().name();
+    }
+
+    @Override
+    public List<StageLatency> getStageLatencies() {
+        PipelineMetrics metrics = this.pipeline.getMetrics();
+        List<StageLatency> latencies = new ArrayList<>();
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = metrics.histogram(stage);
+            if (histogram.count() > 0)
+                latencies.add(StageLatency.of(stage, histogram));
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Double> getGauges() {
+        PipelineMetrics metrics = this.pipeline.getMetrics();
+        Map<String, Double> gauges = new LinkedHashMap<>();
+        for (Gauge gauge : GAUGES)
+            gauges.put(gauge.metricName(), metrics.gauge(gauge));
+        return gauges;
+    }
+
+    @Override
+    public long getNativeTotalBytes() {
+        return Pointer.totalBytes();
+    }
+
+    @Override
+    public long getNativePhysicalBytes() {
+        return Pointer.physicalBytes();
+    }
+
+    @Override
+    public long getNativeMaxBytes() {
+        return Pointer.maxBytes();
+    }
+
+    @Override
+    public String getSegmentationMode() {
+        return this.params.get().getMode().name();
+    }
+
+    @Override
+    public void setSegmentationMode(String mode) {
+        // fail on the JMX client with the list of valid modes
+        SegmentationMode parsed;
+        try {
+            parsed = SegmentationMode.parse(mode);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown mode " + mode + ", expected one of "
+                    + Arrays.toString(SegmentationMode.values()));
+        }
+
+        SegmentationParams current;
+        do {
+            current = this.params.get();
+        } while (!this.params.compareAndSet(current, current.toBuilder().mode(parsed).build()));
+    }
+
+    @Override
+    public String getSegmentationBackend() {
+        return this.params.get().getBackend().name();
+    }
+
+    @Override
+    public void setSegmentationBackend(String backend) {
+        SegmentationBackend parsed;
+        try {
+            parsed = SegmentationBackend.parse(backend, null);
+        } catch (IllegalArgumentException e) {
+            parsed = null;
+        }
+        if (parsed == null)
+            throw new IllegalArgumentException("Unknown backend " + backend + ", expected one of "
+                    + Arrays.toString(SegmentationBackend.values()));
+
+        SegmentationParams current;
+        do {
+            current = this.params.get();
+        } while (!this.params.compareAndSet(current, current.toBuilder().backend(parsed).build()));
+    }
+
+    @Override
+    public boolean isMorphology() {
+        return this.params.get().isMorphology();
+    }
+
+    @Override
+    public void setMorphology(boolean morphology) {
+        SegmentationParams current;
+        do {
+            current = this.params.get();
+        } while (!this.params.compareAndSet(current, current.toBuilder().morphology(morphology).build()));
+    }
+
+    @Override
+    public int getMaskDownscale() {
+        return this.params.get().getMaskDownscale();
+    }
+
+    @Override
+    public void setMaskDownscale(int maskDownscale) {
+        SegmentationParams current;
+        do {
+            current = this.params.get();
+        } while (!this.params.compareAndSet(current, current.toBuilder().maskDownscale(maskDownscale).build()));
+    }
+
+    @Override
+    public int getTileSize() {
+        return this.params.get().getTileSize();
+    }
+
+    @Override
+    public void setTileSize(int tileSize) {
+        SegmentationParams current;
+        do {
+            current = this.params.get();
+        } while (!this.params.compareAndSet(current, current.toBuilder().tileSize(tileSize).build()));
+    }
+
+    @Override
+    public int getCannyPyramidLevel() {
+        return this.params.get().getCannyPyramidLevel();
+    }
+
+    @Override
+    public void setCannyPyramidLevel(int cannyPyramidLevel) {
+        SegmentationParams current;
+        do {
+            current = this.params.get();
+        } while (!this.params.compareAndSet(current,
+                current.toBuilder().cannyPyramidLevel(cannyPyramidLevel).build()));
+    }
+
+    @Override
+    public int getSampleEvery() {
+        return this.pipeline.getMetrics().getSampleEvery();
+    }
+
+    @Override
+    public void setSampleEvery(int sampleEvery) {
+        if (sampleEvery < 0)
+            throw new IllegalArgumentException("The sampling period cannot be negative: " + sampleEvery);
+        this.pipeline.getMetrics().setSampleEvery(sampleEvery);
+    }
+
+    @Override
+    public synchronized void resetStatistics() {
+        this.pipeline.getCounters().reset();
+        this.pipeline.getRing().resetPeakOccupancy();
+        this.pipeline.getMetrics().reset();
+        this.rateTime = System.nanoTime();
+        this.rateFrames = 0;
+        this.rate = 0;
+    }
+
+}
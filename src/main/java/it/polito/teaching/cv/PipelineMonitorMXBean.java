@@ -0,0 +1,200 @@
+package it.polito.teaching.cv;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of a running {@link FramePipeline}, registered
+ * by {@link PipelineMonitor} under
+ * <code>it.polito.teaching.cv:type=Pipeline,name=...</code> and readable with
+ * any JMX client (JConsole, VisualVM, etc.).
+ *
+ * @since 1.6
+ */
+public interface PipelineMonitorMXBean {
+
+    /**
+     * @return a description of the frame source
+     */
+    String getSource();
+
+    /**
+     * @return the rate of processed frames over the last second (or since
+     * the previous read, if longer)
+     */
+    double getFramesPerSecond();
+
+    /**
+     * @return the frames read from the source
+     */
+    long getCapturedFrames();
+
+    /**
+     * @return the frames successfully processed
+     */
+    long getProcessedFrames();
+
+    /**
+     * @return the frames dropped by the ring, oldest and newest
+     */
+    long getDroppedFrames();
+
+    /**
+     * @return the frames whose processing threw an exception
+     */
+    long getFailedFrames();
+
+    /**
+     * @return the processed frames that reached the screen
+     */
+    long getDisplayedFrames();
+
+    /**
+     * @return the processed frames replaced by newer ones before reaching
+     * the screen
+     */
+    long getCoalescedFrames();
+
+    /**
+     * @return the number of frames waiting to be processed
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the highest number of frames waiting at the same time
+     */
+    int getPeakQueueDepth();
+
+    /**
+     * @return the maximum number of frames waiting to be processed
+     */
+    int getQueueCapacity();
+
+    /**
+     * @return the policy applied when the queue is full
+     */
+    String getBackpressurePolicy();
+
+    /**
+     * @return the latency percentiles of each recorded stage
+     */
+    List<StageLatency> getStageLatencies();
+
+    /**
+     * @return the value of each {@link Gauge}, e.g., the Hue threshold and
+     * its error, by name
+     */
+    Map<String, Double> getGauges();
+
+    /**
+     * @return the native memory allocated by JavaCPP and not yet released,
+     * in bytes
+     */
+    long getNativeTotalBytes();
+
+    /**
+     * @return the physical memory used by the process (resident set), in
+     * bytes
+     */
+    long getNativePhysicalBytes();
+
+    /**
+     * @return the limit of the native memory JavaCPP can allocate, in bytes
+     */
+    long getNativeMaxBytes();
+
+    /**
+     * @return the segmentation currently applied (NONE, CANNY,
+     * BACKGROUND_REMOVAL or BACKGROUND_SUBTRACTION)
+     */
+    String getSegmentationMode();
+
+    /**
+     * Switch the segmentation from the next frame on
+     *
+     * @param mode the name of a {@link SegmentationMode}, as accepted by
+     *             {@link SegmentationMode#parse(String)}
+     */
+    void setSegmentationMode(String mode);
+
+    /**
+     * @return the implementation of the background removal (OPENCV, JAVA,
+     * FUSED or PARALLEL)
+     */
+    String getSegmentationBackend();
+
+    /**
+     * Switch the implementation of the background removal from the next
+     * frame on
+     *
+     * @param backend the name of a {@link SegmentationBackend}
+     */
+    void setSegmentationBackend(String backend);
+
+    /**
+     * @return whether the background removal smooths its mask
+     */
+    boolean isMorphology();
+
+    /**
+     * @param morphology whether the background removal smooths its mask
+     *                   (blur, dilation and erosion) before applying it
+     */
+    void setMorphology(boolean morphology);
+
+    /**
+     * @return how many times smaller the mask of the OpenCV background
+     * removal is computed (1 for full resolution)
+     */
+    int getMaskDownscale();
+
+    /**
+     * @param maskDownscale compute the mask of the OpenCV background removal
+     *                      this many times smaller, along both axes (1 for
+     *                      full resolution)
+     */
+    void setMaskDownscale(int maskDownscale);
+
+    /**
+     * @return the side of the tiles processed again only when they change
+     * (0 to process every frame entirely)
+     */
+    int getTileSize();
+
+    /**
+     * @param tileSize process again only the tiles of this side that changed
+     *                 since the previous frames (0 to process every frame
+     *                 entirely)
+     */
+    void setTileSize(int tileSize);
+
+    /**
+     * @return the level of the Gaussian pyramid where Canny finds the edges
+     * (0 for full resolution)
+     */
+    int getCannyPyramidLevel();
+
+    /**
+     * @param cannyPyramidLevel find the Canny edges on a frame this many
+     *                          times halved along both axes (0 for full
+     *                          resolution)
+     */
+    void setCannyPyramidLevel(int cannyPyramidLevel);
+
+    /**
+     * @return how often frames are timed (one every N, 0 for none)
+     */
+    int getSampleEvery();
+
+    /**
+     * @param sampleEvery time one frame every N, or none if 0
+     */
+    void setSampleEvery(int sampleEvery);
+
+    /**
+     * Set the frame counters, the peak queue depth and the latency histograms
+     * back to zero
+     */
+    void resetStatistics();
+
+}
@@ -0,0 +1,82 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Detects the changes of scene that force an update of the statistics of a
+ * video stream, such as {@link HueStatistics} and {@link CannyThresholds}: a
+ * frame changes the scene when its coarse histogram moves away from the one
+ * of the last update by more than
+ * {@link SegmentationParams#getSceneChangeThreshold()}, measured as the
+ * total variation distance.
+ * <p>
+ * An instance keeps the state of one video stream and must be used by one
+ * thread at a time.
+ *
+ * @since 1.6
+ */
+abstract class SceneChangeDetector {
+
+    // the coarse histograms of the current frame and of the last update, as
+    // fractions of the sampled pixels
+    private final double[] scene;
+    private final double[] reference;
+
+    /**
+     * @param bins the number of bins of the coarse histograms
+     */
+    SceneChangeDetector(int bins) {
+        this.scene = new double[bins];
+        this.reference = new double[bins];
+    }
+
+    /**
+     * Compute the coarse histogram of a frame
+     *
+     * @param frame  the frame
+     * @param params the settings of the frame
+     * @param bins   where to write the fraction of the sampled pixels in
+     *               each bin
+     */
+    abstract void histogram(Mat frame, SegmentationParams params, double[] bins);
+
+    /**
+     * Compare a frame with the last update
+     *
+     * @param frame  the current frame
+     * @param params the settings of the frame, with a positive
+     *               {@link SegmentationParams#getSceneChangeThreshold()}
+     * @return whether the frame changes the scene
+     */
+    boolean changed(Mat frame, SegmentationParams params) {
+        this.histogram(frame, params, this.scene);
+        return distance(this.scene, this.reference) > params.getSceneChangeThreshold();
+    }
+
+    /**
+     * Make a frame the reference of the next changes of scene
+     *
+     * @param frame    the frame of the update
+     * @param params   the settings of the frame
+     * @param compared whether the frame has just been given to
+     *                 {@link #changed(Mat, SegmentationParams)}, so that its
+     *                 histogram is known
+     */
+    void update(Mat frame, SegmentationParams params, boolean compared) {
+        if (!compared)
+            this.histogram(frame, params, this.scene);
+        System.arraycopy(this.scene, 0, this.reference, 0, this.scene.length);
+    }
+
+    /**
+     * @return the total variation distance between two distributions,
+     * between 0 and 1
+     */
+    private static double distance(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++)
+            sum += Math.abs(a[i] - b[i]);
+        return sum / 2;
+    }
+
+}
@@ -0,0 +1,49 @@
+package it.polito.teaching.cv;
+
+/**
+ * The implementation of the background removal: the same segmentation,
+ * computed either by a chain of OpenCV calls or in Java.
+ *
+ * @since 1.6
+ */
+public enum SegmentationBackend {
+
+    /**
+     * One OpenCV call (and one pass over the frame) per step
+     */
+    OPENCV,
+
+    /**
+     * The same steps in Java over primitive arrays, computing only the Hue
+     * plane and merging the thresholds into the neighbouring passes, see
+     * {@link JavaBackgroundRemoval}
+     */
+    JAVA,
+
+    /**
+     * Fused Java kernels with no Hue plane: after the histogram, a single
+     * pass reads the BGR frame, computes the Hue, compares it with the
+     * threshold and writes either the pixel or white (the morphology, if
+     * enabled, still runs on a mask in between)
+     */
+    FUSED,
+
+    /**
+     * The OpenCV calls on horizontal stripes of the frame, processed in
+     * parallel in a fork/join pool, see {@link ParallelBackgroundRemoval}
+     */
+    PARALLEL;
+
+    /**
+     * Get the backend with the given name, ignoring case
+     *
+     * @param name         the backend name, possibly <code>null</code>
+     * @param defaultValue the backend returned for a missing name
+     * @return the corresponding backend
+     */
+    public static SegmentationBackend parse(String name, SegmentationBackend defaultValue) {
+        if (name == null || name.trim().isEmpty())
+            return defaultValue;
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,437 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imwrite;
+
+/**
+ * Segment images and videos from the command line, without JavaFX.
+ * <p>
+ * Each input can be an image, a directory of images, a video file or any
+ * other source accepted by {@link FrameSources}. Frames are read in order
+ * and segmented in parallel by a pool of workers, each with its own
+ * {@link SegmentationEngine}; the number of frames in flight is bounded by a
+ * pool of reused frame buffers. The settings that learn from the previous
+ * frames ({@link SegmentationParams#isStateful()}) are applied by a single
+ * worker, to all the frames in order, and each input starts from scratch.
+ * Results are written as PNG images in the output directory:
+ * <code>NAME.png</code> for an image, <code>NAME/FRAME.png</code> for the
+ * frames of a directory or a video.
+ *
+ * @since 1.6
+ */
+public class SegmentationCli {
+
+    private static final String USAGE = "Usage: SegmentationCli [options] INPUT...\n"
+            + "  --mode MODE         canny, background (default), subtraction or none\n"
+            + "  --threshold VALUE   the Canny threshold (default 30)\n"
+            + "  --auto-threshold    derive the Canny thresholds from the median gray level instead\n"
+            + "  --canny-update N    find the median gray level every N frames (default 30)\n"
+            + "  --inverse           inverse the background removal threshold\n"
+            + "  --backend NAME      opencv (default), java, fused or parallel, for the background removal\n"
+            + "  --no-morphology     do not smooth the background removal mask\n"
+            + "  --hue-stride N      estimate the Hue threshold from one pixel every N (default 1)\n"
+            + "  --hue-update N      update the Hue threshold every N frames (default 1)\n"
+            + "  --hue-smoothing W   weight of each update of the Hue threshold (default 1, no smoothing)\n"
+            + "  --scene-change D    update the Hue threshold when its distribution changes by D (0-1)\n"
+            + "  --mask-downscale N  compute the background removal mask N times smaller (default 1)\n"
+            + "  --tile-size N       process again only the NxN tiles that changed (default 0, every frame)\n"
+            + "  --canny-pyramid N   find the Canny edges on a frame halved N times (default 0)\n"
+            + "  --bg-model NAME     mog2 (default) or knn, for the subtraction\n"
+            + "  --bg-history N      the frames the subtraction learns the background from (default 500)\n"
+            + "  --learning-rate R   the weight of a frame in the background model (default -1, automatic)\n"
+            + "  --bg-update N       update the background model every N frames (default 1)\n"
+            + "  --blobs             find the blobs of the mask (opencv backend, without tiles)\n"
+            + "  --min-blob-area N   remove the blobs smaller than N pixels instead of eroding the mask\n"
+            + "  --polygons          write the outlines of the mask as polygons (NAME.poly) instead of images\n"
+            + "  --epsilon E         the largest distance of an outline from its polygon, in pixels (default 2)\n"
+            + "  --keyframe-every N  segment one frame every N, and move its mask to the others (default 1)\n"
+            + "  --max-drift D       the drift of the moved mask, in pixels, that forces a keyframe (default 2)\n"
+            + "  --output DIR        where to write the results (default: segmented)\n"
+            + "  --threads N         the number of workers (default: all the cores)\n"
+            + "  --in-flight N       the maximum number of frames in memory (default: 2 per worker)\n"
+            + "  --max-frames N      the maximum number of frames read from each input\n";
+
+    // the options
+    private final SegmentationParams.Builder params = SegmentationParams.builder()
+            .mode(SegmentationMode.BACKGROUND_REMOVAL)
+            .cannyThreshold(30);
+    private File output = new File("segmented");
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int inFlight = -1;
+    private long maxFrames = -1;
+    private final List<String> inputs = new ArrayList<>();
+
+    // the frame buffers not in flight
+    private BlockingQueue<Mat> freeFrames;
+    private ExecutorService workers;
+    // the engines created by the workers, one each
+    private final List<SegmentationEngine> engines = Collections.synchronizedList(new ArrayList<SegmentationEngine>());
+    private ThreadLocal<SegmentationEngine> engine;
+    // the settings applied to every frame
+    private SegmentationParams settings;
+
+    // the latency of every frame, shared by all the workers
+    private final PipelineMetrics metrics = new PipelineMetrics(1);
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong polygonBytes = new AtomicLong();
+
+    public static void main(String[] args) {
+        SegmentationCli cli = new SegmentationCli();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            boolean ok = cli.run();
+            System.exit(ok ? 0 : 1);
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read the command line options
+     *
+     * @param args the command line arguments
+     */
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--mode":
+                    this.params.mode(SegmentationMode.parse(value(args, ++i, arg)));
+                    break;
+                case "--threshold":
+                    this.params.cannyThreshold(Double.parseDouble(value(args, ++i, arg)));
+                    break;
+                case "--auto-threshold":
+                    this.params.autoCanny(true);
+                    break;
+                case "--canny-update":
+                    this.params.cannyUpdateEvery(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--inverse":
+                    this.params.inverse(true);
+                    break;
+                case "--no-morphology":
+                    this.params.morphology(false);
+                    break;
+                case "--hue-stride":
+                    this.params.hueStride(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--hue-update":
+                    this.params.hueUpdateEvery(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--hue-smoothing":
+                    this.params.hueSmoothing(Double.parseDouble(value(args, ++i, arg)));
+                    break;
+                case "--scene-change":
+                    this.params.sceneChangeThreshold(Double.parseDouble(value(args, ++i, arg)));
+                    break;
+                case "--mask-downscale":
+                    this.params.maskDownscale(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--tile-size":
+                    this.params.tileSize(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--canny-pyramid":
+                    this.params.cannyPyramidLevel(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--bg-model":
+                    this.params.backgroundModel(BackgroundModel.parse(value(args, ++i, arg), BackgroundModel.MOG2));
+                    break;
+                case "--bg-history":
+                    this.params.backgroundHistory(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--learning-rate":
+                    this.params.learningRate(Double.parseDouble(value(args, ++i, arg)));
+                    break;
+                case "--bg-update":
+                    this.params.modelUpdateEvery(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--blobs":
+                    this.params.blobStatistics(true);
+                    break;
+                case "--min-blob-area":
+                    this.params.minBlobArea(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--polygons":
+                    this.params.polygons(true);
+                    break;
+                case "--epsilon":
+                    this.params.polygonEpsilon(Double.parseDouble(value(args, ++i, arg)));
+                    break;
+                case "--keyframe-every":
+                    this.params.keyframeEvery(Integer.parseInt(value(args, ++i, arg)));
+                    break;
+                case "--max-drift":
+                    this.params.maxDrift(Double.parseDouble(value(args, ++i, arg)));
+                    break;
+                case "--backend":
+                    this.params.backend(SegmentationBackend.parse(value(args, ++i, arg), SegmentationBackend.OPENCV));
+                    break;
+                case "--output":
+                    this.output = new File(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    this.threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--in-flight":
+                    this.inFlight = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--max-frames":
+                    this.maxFrames = Long.parseLong(value(args, ++i, arg));
+                    break;
+                default:
+                    if (arg.startsWith("--"))
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    this.inputs.add(arg);
+                    break;
+            }
+        }
+
+        if (this.inputs.isEmpty())
+            throw new IllegalArgumentException("No input given");
+        if (this.threads < 1)
+            throw new IllegalArgumentException("At least one worker is needed");
+        this.settings = this.params.build();
+        if (this.settings.isStateful() && this.threads > 1) {
+            // the frames of an input must reach the same engine in order
+            System.err.println("Warning: these settings learn from the previous frames, using a single worker");
+            this.threads = 1;
+        }
+        if (this.inFlight < 0)
+            this.inFlight = 2 * this.threads;
+        if (this.inFlight < 1)
+            throw new IllegalArgumentException("At least one frame must be in flight");
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    /**
+     * Process all the inputs
+     *
+     * @return <code>true</code> if every frame has been processed
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              workers
+     */
+    boolean run() throws InterruptedException {
+        if (!this.output.isDirectory() && !this.output.mkdirs()) {
+            System.err.println("Cannot create the output directory " + this.output);
+            return false;
+        }
+
+        this.freeFrames = new ArrayBlockingQueue<>(this.inFlight);
+        for (int i = 0; i < this.inFlight; i++)
+            this.freeFrames.add(new Mat());
+        this.engine = ThreadLocal.withInitial(() -> {
+            // every worker sees every frame buffer
+            SegmentationEngine created = new SegmentationEngine(this.metrics, ForkJoinPool.commonPool(),
+                    this.inFlight);
+            this.engines.add(created);
+            return created;
+        });
+        this.workers = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                return new Thread(task, "segmentation-worker-" + this.count.incrementAndGet());
+            }
+        });
+
+        long start = System.nanoTime();
+        boolean ok = true;
+        try {
+            for (String input : this.inputs)
+                ok &= this.processInput(input);
+        } finally {
+            this.workers.shutdown();
+            this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (SegmentationEngine engine : this.engines)
+                engine.close();
+            for (Mat frame : this.freeFrames)
+                frame.release();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%d frames written in %.1f s (%.1f frames/s), %d failed",
+                this.written.get(), seconds, this.written.get() / seconds, this.failed.get()));
+        if (this.settings.isPolygons() && this.written.get() > 0)
+            System.out.println(String.format(Locale.ROOT, "%d bytes of polygons (%.1f bytes/frame)",
+                    this.polygonBytes.get(), (double) this.polygonBytes.get() / this.written.get()));
+        System.out.print("Latency (ms):\n" + this.metrics.report());
+        return ok && this.failed.get() == 0;
+    }
+
+    /**
+     * Read all the frames of an input and hand them to the workers
+     *
+     * @param input the input, as given on the command line
+     * @return <code>false</code> if the input cannot be read
+     * @throws InterruptedException if interrupted while waiting for a free
+     *                              frame buffer
+     */
+    private boolean processInput(String input) throws InterruptedException {
+        File file = new File(input);
+        String name = file.getName().replaceFirst("\\.[^.]*$", "");
+        this.reset();
+
+        // a single image
+        if (ImageDirectoryFrameSource.isImage(file)) {
+            Mat frame = this.freeFrames.take();
+            long start = System.nanoTime();
+            Mat image = imread(file.getPath());
+            if (image.empty()) {
+                image.deallocate();
+                this.freeFrames.put(frame);
+                System.err.println("Cannot read " + input);
+                return false;
+            }
+            image.copyTo(frame);
+            image.deallocate();
+            long captured = System.nanoTime();
+            this.metrics.recordValue(Stage.CAPTURE, captured - start);
+            this.submit(frame, new File(this.output, name + this.extension()), captured, captured - start);
+            return true;
+        }
+
+        // a stream of frames
+        FrameSource source = FrameSources.fromSpec(input);
+        if (!source.open()) {
+            System.err.println("Cannot open " + source);
+            return false;
+        }
+
+        File directory = new File(this.output, name.isEmpty() ? "frames" : name);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            source.close();
+            System.err.println("Cannot create the output directory " + directory);
+            return false;
+        }
+
+        try {
+            for (long index = 0; this.maxFrames < 0 || index < this.maxFrames; index++) {
+                Mat frame = this.freeFrames.take();
+                long start = System.nanoTime();
+                if (!source.read(frame)) {
+                    this.freeFrames.put(frame);
+                    break;
+                }
+                long captured = System.nanoTime();
+                this.metrics.recordValue(Stage.CAPTURE, captured - start);
+
+                String frameName = source instanceof ImageDirectoryFrameSource
+                        ? ((ImageDirectoryFrameSource) source).current().getName().replaceFirst("\\.[^.]*$", "")
+                        : String.format(Locale.ROOT, "%06d", index);
+                this.submit(frame, new File(directory, frameName + this.extension()), captured, captured - start);
+            }
+        } finally {
+            source.close();
+        }
+        return true;
+    }
+
+    /**
+     * Make the engine of the next frames forget the previous input. The
+     * stateful settings have a single worker, which runs the tasks in order,
+     * so the reset happens between the two inputs; the other settings do not
+     * depend on the previous frames.
+     */
+    private void reset() {
+        this.workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                engine.get().reset();
+            }
+        });
+    }
+
+    /**
+     * @return the extension of the output files
+     */
+    private String extension() {
+        return this.settings.isPolygons() ? ".poly" : ".png";
+    }
+
+    /**
+     * Write the polygons found by an engine in a file
+     */
+    private void writePolygons(File file, ContourPolygons polygons) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            polygons.writeTo(out);
+        }
+        this.polygonBytes.addAndGet(polygons.size());
+    }
+
+    /**
+     * Segment a frame on a worker, write the result and give the frame buffer
+     * back
+     *
+     * @param frame           the frame to segment
+     * @param file            where to write the result
+     * @param timestamp       when the frame has been read
+     * @param captureDuration the time taken to read the frame
+     */
+    private void submit(final Mat frame, final File file, final long timestamp, final long captureDuration) {
+        this.workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    FrameEvent event = FrameEvent.start();
+                    long start = System.nanoTime();
+                    SegmentationEngine segmentation = engine.get();
+                    Mat result = segmentation.process(frame, settings);
+                    long processed = System.nanoTime();
+                    if (settings.isPolygons())
+                        writePolygons(file, segmentation.getPolygons());
+                    else if (!imwrite(file.getPath(), result))
+                        throw new IllegalStateException("Cannot write " + file);
+                    long end = System.nanoTime();
+                    written.incrementAndGet();
+                    metrics.recordValue(Stage.END_TO_END, end - timestamp + captureDuration);
+                    FrameEvent.finish(event, frame, settings.getMode(), timestamp, captureDuration, start,
+                            processed - start, end - processed);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.err.println("Failed to process " + file + ": " + e);
+                } finally {
+                    freeFrames.add(frame);
+                }
+            }
+        });
+    }
+
+}
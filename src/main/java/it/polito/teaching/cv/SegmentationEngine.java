@@ -0,0 +1,912 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * The image segmentation operations, free of any user interface: it applies
+ * the Canny filter or tries to remove a uniform background with the erosion
+ * and dilation operators.
+ * <p>
+ * An engine owns the {@link SegmentationWorkspace} of one processing
+ * pipeline and must be used by one thread at a time; the returned frames
+ * belong to the workspace and are overwritten by the next call. The latency
+ * of each step is recorded into {@link PipelineMetrics}, which can be shared
+ * by several engines, and the slow steps are reported to the Java Flight
+ * Recorder as {@link StageEvent}s.
+ * <p>
+ * The threshold of the background removal is the average Hue of each frame,
+ * unless the settings ask to estimate it with {@link HueStatistics}. The
+ * OpenCV background removal can also compute its mask at a reduced
+ * resolution, reporting how much it differs from the full resolution one as
+ * a {@link Gauge}. For mostly static scenes, the segmentation can be
+ * processed again only on the tiles of the frame that changed. Backgrounds
+ * that are not uniform can be learned over time instead, see
+ * {@link BackgroundSubtraction}.
+ *
+ * @since 1.6
+ */
+public class SegmentationEngine {
+
+    /**
+     * How many frames between two checks of a reduced resolution mask
+     * against the full resolution one
+     */
+    public static final int MASK_CHECK_EVERY = 30;
+
+    // the buffers reused for every frame
+    private final SegmentationWorkspace workspace = new SegmentationWorkspace();
+    // the Java background removal, created when first used
+    private JavaBackgroundRemoval javaBackend;
+    // the parallel background removal, created when first used
+    private ParallelBackgroundRemoval parallelBackend;
+    private final ForkJoinPool pool;
+    // the number of frame buffers the frames come from
+    private final int frameBuffers;
+    // where to record the latency of each step
+    private final PipelineMetrics metrics;
+    // the number of processed frames and whether the current one is timed
+    private long frameCount;
+    private boolean sampled;
+    // the flight recorder event of the running step, if enabled
+    private StageEvent stageEvent;
+    // the estimate of the Hue threshold, used with the settings of the
+    // current frame unless they are null (exact threshold)
+    private final HueStatistics hueStatistics;
+    private SegmentationParams hueParams;
+    // the downscale of the mask of the current frame, the buffers of the
+    // scaled frame (created when first used) and the scaled masks so far
+    private int maskDownscale = 1;
+    private SegmentationWorkspace scaledWorkspace;
+    private long scaledMasks;
+    // the automatic Canny thresholds, used with the settings of the current
+    // frame unless they are null (the fixed threshold)
+    private final CannyThresholds cannyThresholds;
+    private SegmentationParams cannyParams;
+    // the frames whose Canny edges have been found on a pyramid level so far
+    private long pyramidCannys;
+    // the incremental processing, created when first used
+    private DirtyTileProcessor tileProcessor;
+    // the blobs of the mask of the current frame, if searched, and the
+    // smallest area kept (0 for all, and erosion)
+    private final BlobStatistics blobs = new BlobStatistics();
+    private boolean findBlobs;
+    private int minBlobArea;
+    // the outlines of the mask of the current frame, if asked
+    private final ContourPolygons polygons = new ContourPolygons();
+    private boolean exportPolygons;
+    private double polygonEpsilon;
+    // the mask of the background removal of the current frame
+    private Mat currentMask;
+    // the propagation of the mask of keyframes, created when first used
+    private MaskPropagation maskPropagation;
+    // the learned background, created when first used
+    private BackgroundSubtraction backgroundSubtraction;
+
+    /**
+     * Create an engine whose steps are not timed
+     */
+    public SegmentationEngine() {
+        this(new PipelineMetrics(0));
+    }
+
+    /**
+     * @param metrics where to record the latency of each step
+     */
+    public SegmentationEngine(PipelineMetrics metrics) {
+        this(metrics, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param metrics where to record the latency of each step
+     * @param pool    where to process the stripes of the
+     *                {@link SegmentationBackend#PARALLEL} background removal
+     */
+    public SegmentationEngine(PipelineMetrics metrics, ForkJoinPool pool) {
+        this(metrics, pool, FrameViews.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param metrics      where to record the latency of each step
+     * @param pool         where to process the stripes of the
+     *                     {@link SegmentationBackend#PARALLEL} background
+     *                     removal
+     * @param frameBuffers the number of reused frame buffers the frames come
+     *                     from, whose views of the stripes and tiles are
+     *                     kept
+     */
+    public SegmentationEngine(PipelineMetrics metrics, ForkJoinPool pool, int frameBuffers) {
+        if (frameBuffers < 1)
+            throw new IllegalArgumentException("At least one frame buffer is needed: " + frameBuffers);
+
+        this.metrics = metrics;
+        this.pool = pool;
+        this.frameBuffers = frameBuffers;
+        this.hueStatistics = new HueStatistics(metrics);
+        this.cannyThresholds = new CannyThresholds(metrics);
+    }
+
+    /**
+     * Segment a frame
+     *
+     * @param frame  the current frame
+     * @param params the settings to apply to this frame
+     * @return the segmented frame (or the frame itself for
+     * {@link SegmentationMode#NONE})
+     */
+    public Mat process(Mat frame, SegmentationParams params) {
+        this.sampled = this.metrics.sampled(this.frameCount++);
+        long start = this.now();
+        StageEvent processingEvent = StageEvent.start();
+
+        // (re)allocate the buffers only if the resolution changed
+        this.workspace.ensure(frame);
+        this.stageEvent = StageEvent.start();
+        this.hueParams = params.isExactHue() ? null : params;
+        this.cannyParams = params.isAutoCanny() ? params : null;
+        this.maskDownscale = params.getMaskDownscale();
+        this.findBlobs = params.isBlobStatistics() || params.getMinBlobArea() > 0;
+        this.minBlobArea = params.getMinBlobArea();
+        this.blobs.clear();
+        this.exportPolygons = params.isPolygons();
+        this.polygonEpsilon = params.getPolygonEpsilon();
+        this.polygons.clear();
+
+        Mat result;
+        if (params.getTileSize() > 0 && (params.getMode() == SegmentationMode.CANNY
+                || params.getMode() == SegmentationMode.BACKGROUND_REMOVAL)) {
+            result = this.doIncremental(frame, params);
+        } else {
+            switch (params.getMode()) {
+                case CANNY:
+                    result = params.getCannyPyramidLevel() > 0
+                            ? this.doPyramidCanny(frame, params.getCannyThreshold(), params.getCannyPyramidLevel())
+                            : this.doCanny(frame, params.getCannyThreshold());
+                    break;
+                case BACKGROUND_REMOVAL:
+                    switch (params.getBackend()) {
+                        case JAVA:
+                            result = this.doJavaBackgroundRemoval(frame, params.isInverse(), params.isMorphology());
+                            break;
+                        case FUSED:
+                            result = this.doFusedBackgroundRemoval(frame, params.isInverse(), params.isMorphology());
+                            break;
+                        case PARALLEL:
+                            result = this.doParallelBackgroundRemoval(frame, params.isInverse(), params.isMorphology());
+                            break;
+                        default:
+                            result = params.getKeyframeEvery() > 1
+                                    ? this.doKeyframeBackgroundRemoval(frame, params)
+                                    : this.doBackgroundRemoval(frame, params.isInverse(), params.isMorphology());
+                            break;
+                    }
+                    break;
+                case BACKGROUND_SUBTRACTION:
+                    result = this.doBackgroundSubtraction(frame, params);
+                    break;
+                default:
+                    result = frame;
+                    break;
+            }
+        }
+
+        StageEvent.finish(processingEvent, Stage.PROCESSING);
+        this.stageEvent = null;
+        this.metrics.record(Stage.PROCESSING, start);
+        return result;
+    }
+
+    /**
+     * @return the current time if the frame is timed, 0 otherwise
+     */
+    private long now() {
+        return this.sampled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Mark the end of a step, recording its latency and its flight recorder
+     * event, and the beginning of the next one
+     *
+     * @param stage the step just completed
+     * @param start the value returned by the previous call, or by
+     *              {@link #now()} for the first step
+     * @return the start of the next step
+     */
+    private long mark(Stage stage, long start) {
+        if (this.stageEvent != null) {
+            StageEvent.finish(this.stageEvent, stage);
+            this.stageEvent = StageEvent.start();
+        }
+        return this.metrics.record(stage, start);
+    }
+
+    /**
+     * Perform the operations needed for removing a uniform background
+     *
+     * @param frame      the current frame
+     * @param inverse    whether to inverse the threshold value
+     * @param morphology whether to smooth the mask before applying it
+     * @return an image with only foreground objects
+     */
+    Mat doBackgroundRemoval(Mat frame, boolean inverse, boolean morphology) {
+        long t = this.now();
+        t = this.backgroundMask(frame, inverse, morphology, t);
+        return this.compose(frame, this.currentMask, t);
+    }
+
+    /**
+     * Compute the mask of the background removal into
+     * {@link #currentMask}, at full or reduced resolution
+     *
+     * @return the start of the next step
+     */
+    private long backgroundMask(Mat frame, boolean inverse, boolean morphology, long t) {
+        SegmentationWorkspace ws = this.workspace;
+        if (this.maskDownscale > 1) {
+            t = this.scaledMask(frame, inverse, morphology, t);
+            this.currentMask = ws.upsampledMask;
+        } else {
+            // threshold the image with the average hue value
+            t = this.convertToHsv(ws, frame, t);
+            double threshValue = this.hueThreshold(ws, frame);
+            t = this.mark(Stage.CALC_HIST, t);
+            t = this.mask(ws, threshValue, inverse, morphology, t);
+            this.currentMask = ws.thresholdImg;
+        }
+        return t;
+    }
+
+    /**
+     * Compose the output frame with a mask, finding its blobs and polygons
+     * if asked
+     *
+     * @param frame the current frame
+     * @param mask  the mask of the foreground
+     * @param t     the start of the next step
+     * @return an image with only foreground objects
+     */
+    private Mat compose(Mat frame, Mat mask, long t) {
+        SegmentationWorkspace ws = this.workspace;
+
+        // the objects of the mask, without the small ones if asked
+        if (this.findBlobs) {
+            this.blobs.find(ws, mask, this.minBlobArea);
+            t = this.mark(Stage.COMPONENTS, t);
+            this.metrics.setGauge(Gauge.BLOBS, this.blobs.count());
+        }
+
+        // create the new image
+        ws.foreground.put(ws.white);
+        frame.copyTo(ws.foreground, mask);
+        t = this.mark(Stage.COPY_TO, t);
+
+        if (this.exportPolygons)
+            this.findPolygons(mask, t);
+        return ws.foreground;
+    }
+
+    /**
+     * Segment only keyframes, and move the mask of the last keyframe to the
+     * frames in between, see {@link MaskPropagation}
+     *
+     * @param frame  the current frame, in BGR
+     * @param params the settings of the frame
+     * @return an image with only foreground objects
+     */
+    Mat doKeyframeBackgroundRemoval(Mat frame, SegmentationParams params) {
+        if (this.maskPropagation == null)
+            this.maskPropagation = new MaskPropagation();
+        MaskPropagation propagation = this.maskPropagation;
+
+        long t = this.now();
+        if (!propagation.isKeyframeDue(frame, params)) {
+            Mat mask = propagation.propagate(frame);
+            t = this.mark(Stage.FLOW, t);
+            if (mask != null) {
+                this.metrics.setGauge(Gauge.PROPAGATION_DRIFT, propagation.drift());
+                return this.compose(frame, mask, t);
+            }
+        }
+
+        // the foreground has been lost, or a keyframe is due anyway
+        t = this.backgroundMask(frame, params.isInverse(), params.isMorphology(), t);
+        propagation.keyframe(frame, this.currentMask, params);
+        t = this.mark(Stage.FLOW, t);
+        this.metrics.setGauge(Gauge.PROPAGATION_DRIFT, 0);
+        this.metrics.addToGauge(Gauge.KEYFRAMES, 1);
+        return this.compose(frame, this.currentMask, t);
+    }
+
+    /**
+     * Compute the mask of the background removal on the frame scaled down by
+     * the current downscale, then scale it back up into
+     * {@link SegmentationWorkspace#upsampledMask}. The blur and the
+     * morphology keep their kernels, so they smooth a larger area of the
+     * frame. Every {@value #MASK_CHECK_EVERY} frames the mask is compared
+     * with the full resolution one.
+     *
+     * @return the start of the next step
+     */
+    private long scaledMask(Mat frame, boolean inverse, boolean morphology, long t) {
+        SegmentationWorkspace ws = this.workspace;
+        if (this.scaledWorkspace == null)
+            this.scaledWorkspace = new SegmentationWorkspace();
+        SegmentationWorkspace scaled = this.scaledWorkspace;
+
+        double scale = 1.0 / this.maskDownscale;
+        resize(frame, ws.scaledFrame, ws.noSize, scale, scale, INTER_AREA);
+        t = this.mark(Stage.RESIZE, t);
+
+        scaled.ensure(ws.scaledFrame);
+        t = this.convertToHsv(scaled, ws.scaledFrame, t);
+        // the estimate samples the frame itself, the exact value is the
+        // average of the scaled one
+        double threshValue = this.hueThreshold(scaled, frame);
+        t = this.mark(Stage.CALC_HIST, t);
+        t = this.mask(scaled, threshValue, inverse, morphology, t);
+
+        // interpolate, then cut halfway between the values of the mask (0
+        // and 179), for edges smoother than the scaled pixels
+        resize(scaled.thresholdImg, ws.upsampledMask, ws.upsampledMask.size(), 0, 0, INTER_LINEAR);
+        threshold(ws.upsampledMask, ws.upsampledMask, 179.0 / 2, 179.0, THRESH_BINARY);
+        t = this.mark(Stage.RESIZE, t);
+
+        if (this.scaledMasks++ % MASK_CHECK_EVERY == 0)
+            this.checkMask(frame, threshValue, inverse, morphology);
+        return t;
+    }
+
+    /**
+     * Compare the upsampled mask with the full resolution one, and report
+     * the loss of intersection over union
+     */
+    private void checkMask(Mat frame, double threshValue, boolean inverse, boolean morphology) {
+        SegmentationWorkspace ws = this.workspace;
+
+        // the full resolution mask, with no timing nor events
+        StageEvent event = this.stageEvent;
+        this.stageEvent = null;
+        this.convertToHsv(ws, frame, 0);
+        if (this.hueParams == null)
+            threshValue = this.histAverage(ws);
+        this.mask(ws, threshValue, inverse, morphology, 0);
+        this.stageEvent = event;
+
+        bitwise_and(ws.thresholdImg, ws.upsampledMask, ws.maskOverlap);
+        double intersection = countNonZero(ws.maskOverlap);
+        bitwise_or(ws.thresholdImg, ws.upsampledMask, ws.maskOverlap);
+        double union = countNonZero(ws.maskOverlap);
+
+        double loss = union == 0 ? 0 : 1 - intersection / union;
+        this.metrics.setGauge(Gauge.MASK_IOU_LOSS, loss);
+        this.metrics.raiseGauge(Gauge.MASK_MAX_IOU_LOSS, loss);
+    }
+
+    /**
+     * Convert a frame to HSV and split its planes, in a workspace fitting it
+     *
+     * @return the start of the next step
+     */
+    private long convertToHsv(SegmentationWorkspace ws, Mat input, long t) {
+        cvtColor(input, ws.hsvImg, COLOR_BGR2HSV);
+        t = this.mark(Stage.CVT_COLOR, t);
+        split(ws.hsvImg, ws.hsvPlanes);
+        return this.mark(Stage.SPLIT, t);
+    }
+
+    /**
+     * @param ws    the workspace holding the Hue plane
+     * @param frame the current frame, in BGR
+     * @return the average Hue of the plane, or its estimate from the frame
+     */
+    private double hueThreshold(SegmentationWorkspace ws, Mat frame) {
+        return this.hueParams == null
+                ? this.histAverage(ws)
+                : this.hueStatistics.threshold(frame, this.hueParams);
+    }
+
+    /**
+     * Threshold the Hue plane of a workspace into its
+     * {@link SegmentationWorkspace#thresholdImg} and, if asked, smooth it
+     *
+     * @return the start of the next step
+     */
+    private long mask(SegmentationWorkspace ws, double threshValue, boolean inverse, boolean morphology, long t) {
+        Mat thresholdImg = ws.thresholdImg;
+
+        int thresh_type = THRESH_BINARY_INV;
+        if (inverse)
+            thresh_type = THRESH_BINARY;
+
+        threshold(ws.huePlane, thresholdImg, threshValue, 179.0, thresh_type);
+        t = this.mark(Stage.THRESHOLD, t);
+
+        if (morphology) {
+            blur(thresholdImg, thresholdImg, ws.blurSize);
+            t = this.mark(Stage.BLUR, t);
+
+            // dilate to fill gaps, erode to smooth edges (unless the small
+            // blobs are removed instead)
+            dilate(thresholdImg, thresholdImg, ws.defaultKernel, ws.defaultAnchor, 1, BORDER_CONSTANT, ws.black);
+            if (this.minBlobArea == 0)
+                erode(thresholdImg, thresholdImg, ws.defaultKernel, ws.defaultAnchor, 3, BORDER_CONSTANT, ws.black);
+            t = this.mark(Stage.MORPHOLOGY, t);
+
+            threshold(thresholdImg, thresholdImg, threshValue, 179.0, THRESH_BINARY);
+            t = this.mark(Stage.THRESHOLD, t);
+        }
+        return t;
+    }
+
+    /**
+     * Perform the same operations as
+     * {@link #doBackgroundRemoval(Mat, boolean, boolean)} in Java, see
+     * {@link JavaBackgroundRemoval}
+     *
+     * @param frame      the current frame, in BGR
+     * @param inverse    whether to inverse the threshold value
+     * @param morphology whether to smooth the mask before applying it
+     * @return an image with only foreground objects
+     */
+    Mat doJavaBackgroundRemoval(Mat frame, boolean inverse, boolean morphology) {
+        JavaBackgroundRemoval java = this.javaBackend(frame);
+        long t = this.now();
+
+        // the Hue plane and its histogram, in a single pass
+        java.readHue(frame);
+        t = this.mark(Stage.CVT_COLOR, t);
+        double threshValue = this.hueParams == null
+                ? java.histAverage()
+                : this.hueStatistics.threshold(frame, this.hueParams);
+        t = this.mark(Stage.CALC_HIST, t);
+
+        java.threshold(threshValue, inverse);
+        t = this.mark(Stage.THRESHOLD, t);
+        if (morphology) {
+            java.blur();
+            t = this.mark(Stage.BLUR, t);
+            java.dilate();
+            java.erode();
+            t = this.mark(Stage.MORPHOLOGY, t);
+        }
+
+        // the second threshold and the copy, in a single pass
+        java.compose(threshValue, this.workspace.foreground);
+        this.mark(Stage.COPY_TO, t);
+
+        return this.workspace.foreground;
+    }
+
+    /**
+     * Perform the background removal with the fused kernels of
+     * {@link JavaBackgroundRemoval}: one pass for the histogram, then one
+     * pass from the BGR frame to the output (or to the mask, smoothed before
+     * composing the output, with morphology)
+     *
+     * @param frame      the current frame, in BGR
+     * @param inverse    whether to inverse the threshold value
+     * @param morphology whether to smooth the mask before applying it
+     * @return an image with only foreground objects
+     */
+    Mat doFusedBackgroundRemoval(Mat frame, boolean inverse, boolean morphology) {
+        JavaBackgroundRemoval java = this.javaBackend(frame);
+        long t = this.now();
+
+        double threshValue;
+        if (this.hueParams == null) {
+            java.readHistogram(frame);
+            threshValue = java.histAverage();
+        } else {
+            java.read(frame);
+            threshValue = this.hueStatistics.threshold(frame, this.hueParams);
+        }
+        t = this.mark(Stage.CALC_HIST, t);
+
+        if (morphology) {
+            java.thresholdHue(threshValue, inverse);
+            t = this.mark(Stage.THRESHOLD, t);
+            java.blur();
+            t = this.mark(Stage.BLUR, t);
+            java.dilate();
+            java.erode();
+            t = this.mark(Stage.MORPHOLOGY, t);
+            java.compose(threshValue, this.workspace.foreground);
+        } else {
+            java.composeHue(threshValue, inverse, this.workspace.foreground);
+        }
+        this.mark(Stage.COPY_TO, t);
+
+        return this.workspace.foreground;
+    }
+
+    /**
+     * Perform the operations of
+     * {@link #doBackgroundRemoval(Mat, boolean, boolean)} on horizontal
+     * stripes of the frame, in parallel, see {@link ParallelBackgroundRemoval}
+     *
+     * @param frame      the current frame
+     * @param inverse    whether to inverse the threshold value
+     * @param morphology whether to smooth the mask before applying it
+     * @return an image with only foreground objects
+     */
+    Mat doParallelBackgroundRemoval(Mat frame, boolean inverse, boolean morphology) {
+        if (this.parallelBackend == null)
+            this.parallelBackend = new ParallelBackgroundRemoval(this.pool, this.frameBuffers);
+        ParallelBackgroundRemoval parallel = this.parallelBackend;
+        long t = this.now();
+
+        parallel.convert(frame, this.workspace.foreground, this.hueParams == null);
+        t = this.mark(Stage.CVT_COLOR, t);
+        double threshValue = this.hueParams == null
+                ? parallel.histAverage()
+                : this.hueStatistics.threshold(frame, this.hueParams);
+        t = this.mark(Stage.CALC_HIST, t);
+
+        // the steps of the stripes overlap: the thresholds, the blur and the
+        // composition are recorded with the morphology
+        parallel.segment(frame, threshValue, inverse, morphology);
+        this.mark(Stage.MORPHOLOGY, t);
+
+        return this.workspace.foreground;
+    }
+
+    /**
+     * Remove the background learned over the previous frames, see
+     * {@link BackgroundSubtraction}
+     *
+     * @param frame  the current frame
+     * @param params the model and its update settings; with morphology, the
+     *               mask is opened to remove isolated pixels
+     * @return an image with only foreground objects
+     */
+    Mat doBackgroundSubtraction(Mat frame, SegmentationParams params) {
+        if (this.backgroundSubtraction == null)
+            this.backgroundSubtraction = new BackgroundSubtraction();
+        SegmentationWorkspace ws = this.workspace;
+        Mat thresholdImg = ws.thresholdImg;
+        long t = this.now();
+
+        this.backgroundSubtraction.apply(frame, thresholdImg, params);
+        t = this.mark(Stage.BACKGROUND_MODEL, t);
+
+        // removing the small blobs replaces the opening
+        if (params.isMorphology() && this.minBlobArea == 0) {
+            morphologyEx(thresholdImg, thresholdImg, MORPH_OPEN, ws.defaultKernel);
+            t = this.mark(Stage.MORPHOLOGY, t);
+        }
+
+        return this.compose(frame, thresholdImg, t);
+    }
+
+    /**
+     * Encode the outlines of a mask, once the output has been composed
+     *
+     * @param mask the mask, which may be modified
+     * @param t    the start of the step
+     */
+    private void findPolygons(Mat mask, long t) {
+        this.polygons.find(this.workspace, mask, this.polygonEpsilon);
+        this.mark(Stage.POLYGONS, t);
+        this.metrics.setGauge(Gauge.POLYGON_BYTES, this.polygons.size());
+    }
+
+    /**
+     * Forget what has been learned from the previous frames (the Hue
+     * statistics, the median gray level of Canny, the tiles, the background
+     * of {@link SegmentationMode#BACKGROUND_SUBTRACTION} and the keyframe),
+     * e.g., when the source changes
+     */
+    public void reset() {
+        this.hueStatistics.reset();
+        if (this.tileProcessor != null)
+            this.tileProcessor.reset();
+        this.cannyThresholds.reset();
+        if (this.backgroundSubtraction != null)
+            this.backgroundSubtraction.reset();
+        if (this.maskPropagation != null)
+            this.maskPropagation.reset();
+    }
+
+    /**
+     * Process again only the tiles of the frame that changed, with the
+     * OpenCV steps whatever the backend, see {@link DirtyTileProcessor}
+     *
+     * @param frame  the current frame, in BGR
+     * @param params the settings of the frame
+     * @return the segmented frame
+     */
+    Mat doIncremental(Mat frame, SegmentationParams params) {
+        if (this.tileProcessor == null)
+            this.tileProcessor = new DirtyTileProcessor(this.frameBuffers);
+        DirtyTileProcessor tiles = this.tileProcessor;
+        long t = this.now();
+
+        tiles.diff(frame, params);
+        t = this.mark(Stage.DIFF, t);
+
+        if (params.getMode() == SegmentationMode.CANNY) {
+            // the conversion is recorded with Canny
+            tiles.canny(frame, params.getCannyThreshold());
+            this.mark(Stage.CANNY, t);
+        } else {
+            tiles.convertToHue(frame, this.hueParams == null);
+            t = this.mark(Stage.CVT_COLOR, t);
+            double threshValue = this.hueParams == null
+                    ? tiles.histAverage()
+                    : this.hueStatistics.threshold(frame, this.hueParams);
+            t = this.mark(Stage.CALC_HIST, t);
+
+            // the steps of the tiles are recorded with the morphology
+            tiles.segment(frame, threshValue, params.isInverse(), params.isMorphology());
+            this.mark(Stage.MORPHOLOGY, t);
+        }
+
+        this.metrics.setGauge(Gauge.TILES_RECOMPUTED, tiles.dirtyFraction());
+        return tiles.output();
+    }
+
+    /**
+     * @param frame the current frame
+     * @return the Java implementation of the background removal
+     */
+    private JavaBackgroundRemoval javaBackend(Mat frame) {
+        if (frame.type() != CV_8UC3)
+            throw new IllegalArgumentException("The Java background removal needs BGR frames, not type " + frame.type());
+        if (this.javaBackend == null)
+            this.javaBackend = new JavaBackgroundRemoval();
+        return this.javaBackend;
+    }
+
+    /**
+     * Get the average hue value of the image starting from its Hue channel
+     * histogram, for the Hue plane of the last frame in the workspace
+     *
+     * @return the average Hue value
+     */
+    double getHistAverage() {
+        return this.histAverage(this.workspace);
+    }
+
+    /**
+     * @param ws the workspace holding the Hue plane
+     * @return the average Hue value of the plane
+     */
+    private double histAverage(SegmentationWorkspace ws) {
+        // init
+        Mat hueValues = ws.huePlane;
+        double average = 0.0;
+
+        // compute the histogram (ws.hue holds hueValues)
+        calcHist(ws.hue, ws.histChannels, ws.noMask, ws.histHue, ws.histSize, ws.histRanges);
+        FloatBuffer hist_hue = ws.histHueValues();
+
+        // get the average Hue value of the image
+        // (sum(bin(h)*h))/(image-height*image-width)
+        // -----------------
+        // equivalent to get the hue of each pixel in the image, add them, and
+        // divide for the image size (height and width)
+        for (int h = 0; h < 180; h++) {
+            // for each bin, get its value and multiply it for the corresponding
+            // hue
+            average += (hist_hue.get(h) * h);
+        }
+
+        // return the average hue of the image
+        return average = average / hueValues.rows() / hueValues.cols();
+    }
+
+    /**
+     * Apply Canny
+     *
+     * @param frame     the current frame
+     * @param threshold the lower threshold of the detector, unless automatic
+     * @return an image elaborated with Canny
+     */
+    Mat doCanny(Mat frame, double threshold) {
+        // init
+        SegmentationWorkspace ws = this.workspace;
+        Mat detectedEdges = ws.detectedEdges;
+        long t = this.now();
+
+        // convert to grayscale
+        cvtColor(frame, ws.grayImage, COLOR_BGR2GRAY);
+        t = this.mark(Stage.CVT_COLOR, t);
+        t = this.updateCannyThresholds(t);
+
+        // reduce noise with a 3x3 kernel
+        blur(ws.grayImage, detectedEdges, ws.cannyBlurSize);
+        t = this.mark(Stage.BLUR, t);
+
+        // canny detector, with ratio of lower:upper threshold of 3:1 unless
+        // automatic
+        Canny(detectedEdges, detectedEdges, this.cannyLow(threshold), this.cannyHigh(threshold));
+        t = this.mark(Stage.CANNY, t);
+
+        // using Canny's output as a mask, display the result
+        ws.dest.put(ws.black);
+        frame.copyTo(ws.dest, detectedEdges);
+        this.mark(Stage.COPY_TO, t);
+
+        return ws.dest;
+    }
+
+    /**
+     * Apply Canny on a level of the Gaussian pyramid of the frame, then
+     * scale the edges back up to display them: each edge pixel of the level
+     * covers a square of 2^level pixels of the frame, so the edges are as
+     * thick. The pyramid already smooths the frame, so there is no blur;
+     * the thresholds are the same as at full resolution. Every
+     * {@value #MASK_CHECK_EVERY} frames the edges are compared with the
+     * full resolution ones, and the time saved is measured.
+     *
+     * @param frame     the current frame
+     * @param threshold the lower threshold of the detector, unless automatic
+     * @param level     the level of the pyramid, at least 1
+     * @return an image elaborated with Canny
+     */
+    Mat doPyramidCanny(Mat frame, double threshold, int level) {
+        // init
+        SegmentationWorkspace ws = this.workspace;
+        Mat detectedEdges = ws.detectedEdges;
+        boolean check = this.pyramidCannys++ % MASK_CHECK_EVERY == 0;
+        long t = this.now();
+
+        // convert to grayscale
+        cvtColor(frame, ws.grayImage, COLOR_BGR2GRAY);
+        t = this.mark(Stage.CVT_COLOR, t);
+        t = this.updateCannyThresholds(t);
+        double low = this.cannyLow(threshold);
+        double high = this.cannyHigh(threshold);
+
+        // halve the image once per level
+        long pyramidStart = check ? System.nanoTime() : 0;
+        Mat levelImage = ws.grayImage;
+        for (int i = 0; i < level; i++) {
+            Mat next = ws.pyramid[i % 2];
+            pyrDown(levelImage, next);
+            levelImage = next;
+        }
+        t = this.mark(Stage.RESIZE, t);
+
+        Canny(levelImage, ws.pyramidEdges, low, high);
+        t = this.mark(Stage.CANNY, t);
+
+        resize(ws.pyramidEdges, detectedEdges, detectedEdges.size(), 0, 0, INTER_NEAREST);
+        t = this.mark(Stage.RESIZE, t);
+        if (check)
+            this.checkEdges(low, high, System.nanoTime() - pyramidStart);
+
+        // using Canny's output as a mask, display the result
+        ws.dest.put(ws.black);
+        frame.copyTo(ws.dest, detectedEdges);
+        this.mark(Stage.COPY_TO, t);
+
+        return ws.dest;
+    }
+
+    /**
+     * Compare the upsampled edges with the full resolution ones, and report
+     * the fraction of the latter they cover and the time they saved
+     *
+     * @param low         the lower threshold of the detector
+     * @param high        the upper threshold of the detector
+     * @param pyramidTime the time spent on the pyramid, Canny and the
+     *                    scaling, in nanoseconds
+     */
+    private void checkEdges(double low, double high, long pyramidTime) {
+        SegmentationWorkspace ws = this.workspace;
+
+        // the full resolution edges, with no timing nor events
+        long start = System.nanoTime();
+        blur(ws.grayImage, ws.fullEdges, ws.cannyBlurSize);
+        Canny(ws.fullEdges, ws.fullEdges, low, high);
+        long fullTime = System.nanoTime() - start;
+
+        double edges = countNonZero(ws.fullEdges);
+        bitwise_and(ws.fullEdges, ws.detectedEdges, ws.maskOverlap);
+        double covered = countNonZero(ws.maskOverlap);
+
+        this.metrics.setGauge(Gauge.CANNY_EDGE_AGREEMENT, edges == 0 ? 1 : covered / edges);
+        this.metrics.setGauge(Gauge.CANNY_TIME_SAVED, fullTime == 0 ? 0 : 1 - (double) pyramidTime / fullTime);
+    }
+
+    /**
+     * Update the median gray level of {@link SegmentationWorkspace#grayImage}
+     * if the Canny thresholds are automatic and an update is due
+     *
+     * @return the start of the next step
+     */
+    private long updateCannyThresholds(long t) {
+        if (this.cannyParams == null)
+            return t;
+        this.cannyThresholds.update(this.workspace.grayImage, this.cannyParams);
+        return this.mark(Stage.CALC_HIST, t);
+    }
+
+    /**
+     * @param threshold the lower threshold of the settings
+     * @return the lower threshold of the current frame
+     */
+    private double cannyLow(double threshold) {
+        return this.cannyParams == null ? threshold : this.cannyThresholds.low();
+    }
+
+    /**
+     * @param threshold the lower threshold of the settings
+     * @return the upper threshold of the current frame
+     */
+    private double cannyHigh(double threshold) {
+        return this.cannyParams == null ? threshold * 3 : this.cannyThresholds.high();
+    }
+
+    /**
+     * @return where the latency of each step is recorded
+     */
+    public PipelineMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the blobs found in the mask of the last frame, if asked by its
+     * settings, overwritten by the next frame
+     */
+    public BlobStatistics getBlobs() {
+        return this.blobs;
+    }
+
+    /**
+     * @return the polygons of the mask of the last frame, if asked by its
+     * settings, overwritten by the next frame
+     */
+    public ContourPolygons getPolygons() {
+        return this.polygons;
+    }
+
+    /**
+     * @return the estimate of the Hue threshold
+     */
+    public HueStatistics getHueStatistics() {
+        return this.hueStatistics;
+    }
+
+    /**
+     * @return the buffers used by this engine
+     */
+    SegmentationWorkspace getWorkspace() {
+        return this.workspace;
+    }
+
+    /**
+     * Release the native memory of the engine
+     */
+    public void close() {
+        this.workspace.close();
+        this.javaBackend = null;
+        if (this.maskPropagation != null) {
+            this.maskPropagation.close();
+            this.maskPropagation = null;
+        }
+        if (this.backgroundSubtraction != null) {
+            this.backgroundSubtraction.close();
+            this.backgroundSubtraction = null;
+        }
+        if (this.tileProcessor != null) {
+            this.tileProcessor.close();
+            this.tileProcessor = null;
+        }
+        if (this.scaledWorkspace != null) {
+            this.scaledWorkspace.close();
+            this.scaledWorkspace = null;
+        }
+        if (this.parallelBackend != null) {
+            this.parallelBackend.close();
+            this.parallelBackend = null;
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package it.polito.teaching.cv;
+
+/**
+ * The image segmentation applied to each frame.
+ *
+ * @since 1.6
+ */
+public enum SegmentationMode {
+
+    /**
+     * Show the frames as they are
+     */
+    NONE,
+
+    /**
+     * Keep only the edges found by the Canny detector
+     */
+    CANNY,
+
+    /**
+     * Remove a uniform background with the erosion and dilation operators
+     */
+    BACKGROUND_REMOVAL,
+
+    /**
+     * Remove any background learned over the previous frames, see
+     * {@link BackgroundSubtraction}
+     */
+    BACKGROUND_SUBTRACTION;
+
+    /**
+     * Get the mode with the given name, ignoring case; <code>canny</code>,
+     * <code>background</code> and <code>subtraction</code> are accepted as
+     * short names
+     *
+     * @param name the mode name
+     * @return the corresponding mode
+     */
+    public static SegmentationMode parse(String name) {
+        String text = name.trim().toUpperCase().replace('-', '_');
+        if (text.equals("BACKGROUND"))
+            return BACKGROUND_REMOVAL;
+        if (text.equals("SUBTRACTION"))
+            return BACKGROUND_SUBTRACTION;
+        return valueOf(text);
+    }
+}
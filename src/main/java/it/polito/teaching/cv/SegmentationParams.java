@@ -0,0 +1,579 @@
+package it.polito.teaching.cv;
+
+/**
+ * An immutable snapshot of the segmentation settings. The user interface
+ * publishes a new snapshot whenever a control changes, and the processing
+ * thread reads one consistent snapshot per frame, never touching the
+ * controls themselves.
+ *
+ * @since 1.6
+ */
+public final class SegmentationParams {
+
+    /**
+     * The settings used when nothing has been chosen yet
+     */
+    public static final SegmentationParams DEFAULT = builder().build();
+
+    private final SegmentationMode mode;
+    private final double cannyThreshold;
+    private final boolean inverse;
+    private final SegmentationBackend backend;
+    private final boolean morphology;
+    private final int hueStride;
+    private final int hueUpdateEvery;
+    private final double hueSmoothing;
+    private final double sceneChangeThreshold;
+    private final int maskDownscale;
+    private final int tileSize;
+    private final BackgroundModel backgroundModel;
+    private final int backgroundHistory;
+    private final double learningRate;
+    private final int modelUpdateEvery;
+    private final boolean blobStatistics;
+    private final int minBlobArea;
+    private final boolean polygons;
+    private final double polygonEpsilon;
+    private final int keyframeEvery;
+    private final double maxDrift;
+    private final int cannyPyramidLevel;
+    private final boolean autoCanny;
+    private final int cannyUpdateEvery;
+
+    private SegmentationParams(Builder builder) {
+        this.mode = builder.mode;
+        this.cannyThreshold = builder.cannyThreshold;
+        this.inverse = builder.inverse;
+        this.backend = builder.backend;
+        this.morphology = builder.morphology;
+        this.hueStride = builder.hueStride;
+        this.hueUpdateEvery = builder.hueUpdateEvery;
+        this.hueSmoothing = builder.hueSmoothing;
+        this.sceneChangeThreshold = builder.sceneChangeThreshold;
+        this.maskDownscale = builder.maskDownscale;
+        this.tileSize = builder.tileSize;
+        this.backgroundModel = builder.backgroundModel;
+        this.backgroundHistory = builder.backgroundHistory;
+        this.learningRate = builder.learningRate;
+        this.modelUpdateEvery = builder.modelUpdateEvery;
+        this.blobStatistics = builder.blobStatistics;
+        this.minBlobArea = builder.minBlobArea;
+        this.polygons = builder.polygons;
+        this.polygonEpsilon = builder.polygonEpsilon;
+        this.keyframeEvery = builder.keyframeEvery;
+        this.maxDrift = builder.maxDrift;
+        this.cannyPyramidLevel = builder.cannyPyramidLevel;
+        this.autoCanny = builder.autoCanny;
+        this.cannyUpdateEvery = builder.cannyUpdateEvery;
+    }
+
+    /**
+     * @return a builder with the default settings
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder initialized with these settings
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .mode(this.mode)
+                .cannyThreshold(this.cannyThreshold)
+                .inverse(this.inverse)
+                .backend(this.backend)
+                .morphology(this.morphology)
+                .hueStride(this.hueStride)
+                .hueUpdateEvery(this.hueUpdateEvery)
+                .hueSmoothing(this.hueSmoothing)
+                .sceneChangeThreshold(this.sceneChangeThreshold)
+                .maskDownscale(this.maskDownscale)
+                .tileSize(this.tileSize)
+                .backgroundModel(this.backgroundModel)
+                .backgroundHistory(this.backgroundHistory)
+                .learningRate(this.learningRate)
+                .modelUpdateEvery(this.modelUpdateEvery)
+                .blobStatistics(this.blobStatistics)
+                .minBlobArea(this.minBlobArea)
+                .polygons(this.polygons)
+                .polygonEpsilon(this.polygonEpsilon)
+                .keyframeEvery(this.keyframeEvery)
+                .maxDrift(this.maxDrift)
+                .cannyPyramidLevel(this.cannyPyramidLevel)
+                .autoCanny(this.autoCanny)
+                .cannyUpdateEvery(this.cannyUpdateEvery);
+    }
+
+    /**
+     * @return the segmentation to apply
+     */
+    public SegmentationMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return the lower threshold of the Canny detector (the upper one is
+     * three times as much)
+     */
+    public double getCannyThreshold() {
+        return this.cannyThreshold;
+    }
+
+    /**
+     * @return whether to inverse the threshold of the background removal
+     */
+    public boolean isInverse() {
+        return this.inverse;
+    }
+
+    /**
+     * @return the implementation of the background removal
+     */
+    public SegmentationBackend getBackend() {
+        return this.backend;
+    }
+
+    /**
+     * @return whether the background removal smooths its mask (blur,
+     * dilation and erosion) before applying it
+     */
+    public boolean isMorphology() {
+        return this.morphology;
+    }
+
+    /**
+     * @return the distance between the pixels sampled for the Hue threshold,
+     * along both axes (1 for every pixel)
+     */
+    public int getHueStride() {
+        return this.hueStride;
+    }
+
+    /**
+     * @return the number of frames between two updates of the Hue threshold
+     * (1 for every frame)
+     */
+    public int getHueUpdateEvery() {
+        return this.hueUpdateEvery;
+    }
+
+    /**
+     * @return the weight of a new estimate of the Hue threshold in its
+     * exponential moving average (1 for no smoothing)
+     */
+    public double getHueSmoothing() {
+        return this.hueSmoothing;
+    }
+
+    /**
+     * @return the change of the Hue distribution, between 0 and 1, that
+     * updates the Hue threshold before its time, and of the gray levels,
+     * that updates the automatic Canny thresholds (0 to never detect changes
+     * of scene)
+     */
+    public double getSceneChangeThreshold() {
+        return this.sceneChangeThreshold;
+    }
+
+    /**
+     * @return how many times smaller, along both axes, the mask of the
+     * {@link SegmentationBackend#OPENCV} background removal is computed
+     * before being scaled back to the frame (1 for full resolution); the
+     * background removal of the other backends and the incremental
+     * processing cannot be combined with it
+     */
+    public int getMaskDownscale() {
+        return this.maskDownscale;
+    }
+
+    /**
+     * @return the side of the tiles compared with the previous frames, to
+     * process again only the ones that changed (0 to process every frame
+     * entirely), see {@link DirtyTileProcessor}
+     */
+    public int getTileSize() {
+        return this.tileSize;
+    }
+
+    /**
+     * @return the model of the background subtraction
+     */
+    public BackgroundModel getBackgroundModel() {
+        return this.backgroundModel;
+    }
+
+    /**
+     * @return the number of frames the background subtraction learns from
+     */
+    public int getBackgroundHistory() {
+        return this.backgroundHistory;
+    }
+
+    /**
+     * @return the weight of a frame in each update of the background model,
+     * between 0 and 1, or -1 to derive it from the history
+     */
+    public double getLearningRate() {
+        return this.learningRate;
+    }
+
+    /**
+     * @return the number of frames between two updates of the background
+     * model (1 for every frame)
+     */
+    public int getModelUpdateEvery() {
+        return this.modelUpdateEvery;
+    }
+
+    /**
+     * @return whether the {@link SegmentationBackend#OPENCV} background
+     * removal, on every frame (including the ones propagated from a
+     * keyframe), and the adaptive one find the blobs of their mask, see
+     * {@link BlobStatistics}; the background removal of the other backends
+     * and the incremental processing does not, so it cannot be combined with
+     * it
+     */
+    public boolean isBlobStatistics() {
+        return this.blobStatistics;
+    }
+
+    /**
+     * @return the area, in pixels, of the smallest blob kept in the mask of
+     * the {@link SegmentationBackend#OPENCV} and the adaptive background
+     * removal (0 to keep them all); a positive area replaces the erosion, or
+     * the opening, and finds the blobs, see {@link #isBlobStatistics()}
+     */
+    public int getMinBlobArea() {
+        return this.minBlobArea;
+    }
+
+    /**
+     * @return whether the background removal (OpenCV backend) and the
+     * background subtraction encode the outlines of their mask as polygons,
+     * see {@link ContourPolygons}; the background removal of the other
+     * backends and the incremental processing cannot be combined with it
+     */
+    public boolean isPolygons() {
+        return this.polygons;
+    }
+
+    /**
+     * @return the largest distance, in pixels, between an outline and its
+     * polygon
+     */
+    public double getPolygonEpsilon() {
+        return this.polygonEpsilon;
+    }
+
+    /**
+     * @return the largest number of frames between two keyframes of the
+     * {@link SegmentationBackend#OPENCV} background removal, whose mask is
+     * propagated to the frames in between (1 to segment every frame), see
+     * {@link MaskPropagation}; the background removal of the other backends
+     * and the incremental processing cannot be combined with it
+     */
+    public int getKeyframeEvery() {
+        return this.keyframeEvery;
+    }
+
+    /**
+     * @return the drift of the propagated mask, in pixels, that forces a
+     * new keyframe
+     */
+    public double getMaxDrift() {
+        return this.maxDrift;
+    }
+
+    /**
+     * @return the level of the Gaussian pyramid where Canny finds the edges,
+     * each one half as wide and high as the previous (0 for full
+     * resolution); the incremental processing always works at full
+     * resolution
+     */
+    public int getCannyPyramidLevel() {
+        return this.cannyPyramidLevel;
+    }
+
+    /**
+     * @return <code>true</code> if the Canny thresholds are derived from the
+     * median gray level of the frame instead of
+     * {@link #getCannyThreshold()}, see {@link CannyThresholds}; the
+     * incremental processing always uses the latter
+     */
+    public boolean isAutoCanny() {
+        return this.autoCanny;
+    }
+
+    /**
+     * @return how many frames the median gray level of the automatic Canny
+     * thresholds is kept, unless the scene changes
+     */
+    public int getCannyUpdateEvery() {
+        return this.cannyUpdateEvery;
+    }
+
+    /**
+     * @return <code>true</code> if the result of a frame depends on the
+     * previous frames of the stream, which must then all go through the same
+     * {@link SegmentationEngine}, in order: the Hue threshold kept or
+     * smoothed over several frames (see {@link HueStatistics}), the tiles
+     * kept from the previous frames (see {@link #getTileSize()}), the mask
+     * propagated from the keyframe (see {@link MaskPropagation}), the median
+     * gray level kept for the automatic Canny thresholds (see
+     * {@link CannyThresholds}) and the background model of
+     * {@link SegmentationMode#BACKGROUND_SUBTRACTION}
+     */
+    public boolean isStateful() {
+        return this.mode == SegmentationMode.BACKGROUND_SUBTRACTION
+                || this.mode == SegmentationMode.BACKGROUND_REMOVAL
+                && (this.hueUpdateEvery > 1 || this.hueSmoothing < 1 || this.tileSize > 0 || this.keyframeEvery > 1)
+                || this.mode == SegmentationMode.CANNY
+                && (this.tileSize > 0 || this.autoCanny && this.cannyUpdateEvery > 1);
+    }
+
+    /**
+     * @return <code>true</code> if the Hue threshold is computed exactly on
+     * every frame, <code>false</code> if it is estimated by
+     * {@link HueStatistics}
+     */
+    public boolean isExactHue() {
+        return this.hueStride == 1 && this.hueUpdateEvery == 1 && this.hueSmoothing == 1;
+    }
+
+    @Override
+    public String toString() {
+        return "mode " + this.mode + ", Canny threshold " + this.cannyThreshold + ", inverse " + this.inverse
+                + ", backend " + this.backend + ", morphology " + this.morphology
+                + (this.isExactHue() ? "" : ", Hue stride " + this.hueStride + ", Hue update every "
+                + this.hueUpdateEvery + ", Hue smoothing " + this.hueSmoothing + ", scene change threshold "
+                + this.sceneChangeThreshold)
+                + (this.maskDownscale == 1 ? "" : ", mask downscale " + this.maskDownscale)
+                + (this.tileSize == 0 ? "" : ", tile size " + this.tileSize)
+                + (this.mode != SegmentationMode.BACKGROUND_SUBTRACTION ? "" : ", background model "
+                + this.backgroundModel + ", history " + this.backgroundHistory + ", learning rate "
+                + this.learningRate + ", model update every " + this.modelUpdateEvery)
+                + (this.blobStatistics ? ", blob statistics" : "")
+                + (this.minBlobArea == 0 ? "" : ", minimum blob area " + this.minBlobArea)
+                + (this.polygons ? ", polygons with epsilon " + this.polygonEpsilon : "")
+                + (this.keyframeEvery == 1 ? "" : ", keyframe every " + this.keyframeEvery + ", maximum drift "
+                + this.maxDrift)
+                + (this.cannyPyramidLevel == 0 ? "" : ", Canny pyramid level " + this.cannyPyramidLevel)
+                + (this.autoCanny ? ", automatic Canny thresholds updated every " + this.cannyUpdateEvery : "");
+    }
+
+    /**
+     * Builds {@link SegmentationParams} objects
+     */
+    public static final class Builder {
+
+        private SegmentationMode mode = SegmentationMode.NONE;
+        private double cannyThreshold;
+        private boolean inverse;
+        private SegmentationBackend backend = SegmentationBackend.OPENCV;
+        private boolean morphology = true;
+        private int hueStride = 1;
+        private int hueUpdateEvery = 1;
+        private double hueSmoothing = 1;
+        private double sceneChangeThreshold;
+        private int maskDownscale = 1;
+        private int tileSize;
+        private BackgroundModel backgroundModel = BackgroundModel.MOG2;
+        private int backgroundHistory = 500;
+        private double learningRate = -1;
+        private int modelUpdateEvery = 1;
+        private boolean blobStatistics;
+        private int minBlobArea;
+        private boolean polygons;
+        private double polygonEpsilon = 2;
+        private int keyframeEvery = 1;
+        private double maxDrift = 2;
+        private int cannyPyramidLevel;
+        private boolean autoCanny;
+        private int cannyUpdateEvery = 30;
+
+        private Builder() {
+        }
+
+        public Builder mode(SegmentationMode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public Builder cannyThreshold(double cannyThreshold) {
+            this.cannyThreshold = cannyThreshold;
+            return this;
+        }
+
+        public Builder inverse(boolean inverse) {
+            this.inverse = inverse;
+            return this;
+        }
+
+        public Builder backend(SegmentationBackend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        public Builder morphology(boolean morphology) {
+            this.morphology = morphology;
+            return this;
+        }
+
+        public Builder hueStride(int hueStride) {
+            if (hueStride < 1)
+                throw new IllegalArgumentException("The Hue stride must be positive: " + hueStride);
+            this.hueStride = hueStride;
+            return this;
+        }
+
+        public Builder hueUpdateEvery(int hueUpdateEvery) {
+            if (hueUpdateEvery < 1)
+                throw new IllegalArgumentException("The Hue update period must be positive: " + hueUpdateEvery);
+            this.hueUpdateEvery = hueUpdateEvery;
+            return this;
+        }
+
+        public Builder hueSmoothing(double hueSmoothing) {
+            if (!(hueSmoothing > 0 && hueSmoothing <= 1))
+                throw new IllegalArgumentException("The Hue smoothing must be in (0, 1]: " + hueSmoothing);
+            this.hueSmoothing = hueSmoothing;
+            return this;
+        }
+
+        public Builder sceneChangeThreshold(double sceneChangeThreshold) {
+            if (!(sceneChangeThreshold >= 0 && sceneChangeThreshold <= 1))
+                throw new IllegalArgumentException("The scene change threshold must be in [0, 1]: "
+                        + sceneChangeThreshold);
+            this.sceneChangeThreshold = sceneChangeThreshold;
+            return this;
+        }
+
+        public Builder maskDownscale(int maskDownscale) {
+            if (maskDownscale < 1)
+                throw new IllegalArgumentException("The mask downscale must be positive: " + maskDownscale);
+            this.maskDownscale = maskDownscale;
+            return this;
+        }
+
+        public Builder tileSize(int tileSize) {
+            if (tileSize < 0)
+                throw new IllegalArgumentException("The tile size cannot be negative: " + tileSize);
+            this.tileSize = tileSize;
+            return this;
+        }
+
+        public Builder backgroundModel(BackgroundModel backgroundModel) {
+            this.backgroundModel = backgroundModel;
+            return this;
+        }
+
+        public Builder backgroundHistory(int backgroundHistory) {
+            if (backgroundHistory < 1)
+                throw new IllegalArgumentException("The background history must be positive: " + backgroundHistory);
+            this.backgroundHistory = backgroundHistory;
+            return this;
+        }
+
+        public Builder learningRate(double learningRate) {
+            if (!(learningRate == -1 || learningRate >= 0 && learningRate <= 1))
+                throw new IllegalArgumentException("The learning rate must be in [0, 1], or -1: " + learningRate);
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        public Builder modelUpdateEvery(int modelUpdateEvery) {
+            if (modelUpdateEvery < 1)
+                throw new IllegalArgumentException("The model update period must be positive: " + modelUpdateEvery);
+            this.modelUpdateEvery = modelUpdateEvery;
+            return this;
+        }
+
+        public Builder blobStatistics(boolean blobStatistics) {
+            this.blobStatistics = blobStatistics;
+            return this;
+        }
+
+        public Builder minBlobArea(int minBlobArea) {
+            if (minBlobArea < 0)
+                throw new IllegalArgumentException("The minimum blob area cannot be negative: " + minBlobArea);
+            this.minBlobArea = minBlobArea;
+            return this;
+        }
+
+        public Builder polygons(boolean polygons) {
+            this.polygons = polygons;
+            return this;
+        }
+
+        public Builder polygonEpsilon(double polygonEpsilon) {
+            if (!(polygonEpsilon >= 0))
+                throw new IllegalArgumentException("The polygon epsilon cannot be negative: " + polygonEpsilon);
+            this.polygonEpsilon = polygonEpsilon;
+            return this;
+        }
+
+        public Builder keyframeEvery(int keyframeEvery) {
+            if (keyframeEvery < 1)
+                throw new IllegalArgumentException("The keyframe period must be positive: " + keyframeEvery);
+            this.keyframeEvery = keyframeEvery;
+            return this;
+        }
+
+        public Builder maxDrift(double maxDrift) {
+            if (!(maxDrift >= 0))
+                throw new IllegalArgumentException("The maximum drift cannot be negative: " + maxDrift);
+            this.maxDrift = maxDrift;
+            return this;
+        }
+
+        public Builder cannyPyramidLevel(int cannyPyramidLevel) {
+            if (cannyPyramidLevel < 0)
+                throw new IllegalArgumentException("The pyramid level cannot be negative: " + cannyPyramidLevel);
+            this.cannyPyramidLevel = cannyPyramidLevel;
+            return this;
+        }
+
+        public Builder autoCanny(boolean autoCanny) {
+            this.autoCanny = autoCanny;
+            return this;
+        }
+
+        public Builder cannyUpdateEvery(int cannyUpdateEvery) {
+            if (cannyUpdateEvery < 1)
+                throw new IllegalArgumentException("The Canny update period must be positive: " + cannyUpdateEvery);
+            this.cannyUpdateEvery = cannyUpdateEvery;
+            return this;
+        }
+
+        /**
+         * @return the settings
+         * @throws IllegalArgumentException if the blobs, the polygons, the
+         *                                  keyframes or a reduced resolution
+         *                                  mask are asked of the background
+         *                                  removal with a backend or the
+         *                                  incremental processing, which
+         *                                  ignore them
+         */
+        public SegmentationParams build() {
+            // the other modes either apply them or do not have a mask
+            if (this.mode == SegmentationMode.BACKGROUND_REMOVAL
+                    && (this.backend != SegmentationBackend.OPENCV || this.tileSize > 0)) {
+                if (this.blobStatistics || this.minBlobArea > 0)
+                    throw new IllegalArgumentException(
+                            "The blobs are only found by the OpenCV background removal, without tiles");
+                if (this.polygons)
+                    throw new IllegalArgumentException(
+                            "The polygons are only found by the OpenCV background removal, without tiles");
+                if (this.keyframeEvery > 1)
+                    throw new IllegalArgumentException(
+                            "The keyframes are only used by the OpenCV background removal, without tiles");
+                if (this.maskDownscale > 1)
+                    throw new IllegalArgumentException(
+                            "The mask is only downscaled by the OpenCV background removal, without tiles");
+            }
+            return new SegmentationParams(this);
+        }
+    }
+
+}
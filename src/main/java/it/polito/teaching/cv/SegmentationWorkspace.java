@@ -0,0 +1,177 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * All the intermediate buffers and constant arguments needed to segment a
+ * frame, allocated once and reused for every frame of the same resolution.
+ * <p>
+ * Each processing pipeline owns its own workspace, which must only be used
+ * by one thread at a time. Call {@link #ensure(Mat)} at the beginning of each
+ * frame: the buffers are allocated again only when the resolution (or the
+ * type) of the frames changes, so in steady state no native memory is
+ * allocated.
+ *
+ * @since 1.6
+ */
+public class SegmentationWorkspace {
+
+    // background removal
+    final Mat hsvImg = new Mat();
+    final MatVector hsvPlanes = new MatVector(3);
+    final Mat thresholdImg = new Mat();
+    final Mat foreground = new Mat();
+    // the Hue plane, as stored in hsvPlanes
+    Mat huePlane;
+
+    // Hue histogram
+    final MatVector hue = new MatVector(1);
+    final Mat histHue = new Mat();
+    // 0-180: range of Hue values
+    final IntPointer histChannels = new IntPointer(new int[]{0});
+    final IntPointer histSize = new IntPointer(new int[]{180});
+    final FloatPointer histRanges = new FloatPointer(new float[]{0, 179});
+    // the memory of histHue, once computed
+    FloatBuffer histHueValues;
+
+    // mask at a reduced resolution
+    final Mat scaledFrame = new Mat();
+    final Mat upsampledMask = new Mat();
+    final Mat maskOverlap = new Mat();
+
+    // connected components of the mask
+    final Mat labels = new Mat();
+    final Mat blobStats = new Mat();
+    final Mat blobCentroids = new Mat();
+    // the memory of labels, once computed
+    IntBuffer labelValues;
+
+    // outlines of the mask
+    final MatVector contours = new MatVector();
+    final Mat polygon = new Mat();
+
+    // Canny
+    final Mat grayImage = new Mat();
+    final Mat detectedEdges = new Mat();
+    final Mat dest = new Mat();
+
+    // Canny on a pyramid level, allocated by pyrDown as needed
+    final Mat[] pyramid = {new Mat(), new Mat()};
+    final Mat pyramidEdges = new Mat();
+    final Mat fullEdges = new Mat();
+
+    // constant arguments
+    final Mat noMask = new Mat();
+    final Size noSize = new Size();
+    final Mat defaultKernel = new Mat();
+    final Size blurSize = new Size(5, 5);
+    final Size cannyBlurSize = new Size(3, 3);
+    final Point defaultAnchor = new Point(-1, -1);
+    final Scalar black = Scalar.all(0);
+    final Scalar white = Scalar.all(255);
+
+    // the frames the buffers are allocated for
+    private int rows = -1;
+    private int cols = -1;
+    private int type = -1;
+
+    /**
+     * Make the buffers fit the given frame, allocating them only if its
+     * resolution or type differ from the previous one
+     *
+     * @param frame the current frame
+     * @return <code>true</code> if the buffers have been allocated again
+     */
+    public boolean ensure(Mat frame) {
+        if (frame.rows() == this.rows && frame.cols() == this.cols && frame.type() == this.type)
+            return false;
+
+        this.rows = frame.rows();
+        this.cols = frame.cols();
+        this.type = frame.type();
+
+        this.hsvImg.create(this.rows, this.cols, CV_8UC3);
+        for (int i = 0; i < 3; i++)
+            this.hsvPlanes.get(i).create(this.rows, this.cols, CV_8UC1);
+        this.huePlane = this.hsvPlanes.get(0);
+        this.hue.put(0, this.huePlane);
+        this.thresholdImg.create(this.rows, this.cols, CV_8UC1);
+        this.foreground.create(this.rows, this.cols, CV_8UC3);
+        this.upsampledMask.create(this.rows, this.cols, CV_8UC1);
+        this.maskOverlap.create(this.rows, this.cols, CV_8UC1);
+        this.labels.create(this.rows, this.cols, CV_32S);
+        this.labelValues = null;
+
+        this.grayImage.create(this.rows, this.cols, CV_8UC1);
+        this.detectedEdges.create(this.rows, this.cols, CV_8UC1);
+        this.dest.create(this.rows, this.cols, this.type);
+
+        return true;
+    }
+
+    /**
+     * Get the values of the Hue histogram computed in {@link #histHue}
+     *
+     * @return a buffer over the 180 bins
+     */
+    FloatBuffer histHueValues() {
+        // the histogram keeps its memory as long as its size is the same
+        if (this.histHueValues == null)
+            this.histHueValues = this.histHue.createBuffer();
+        return this.histHueValues;
+    }
+
+    /**
+     * Get the labels computed in {@link #labels}
+     *
+     * @return a buffer over the labels, row by row
+     */
+    IntBuffer labelValues() {
+        if (this.labelValues == null)
+            this.labelValues = this.labels.createBuffer();
+        return this.labelValues;
+    }
+
+    /**
+     * Release the native memory of all the buffers. The workspace cannot be
+     * used afterwards.
+     */
+    public void close() {
+        this.hsvImg.release();
+        this.hsvPlanes.deallocate();
+        this.hue.deallocate();
+        this.thresholdImg.release();
+        this.foreground.release();
+        this.scaledFrame.release();
+        this.upsampledMask.release();
+        this.maskOverlap.release();
+        this.labels.release();
+        this.blobStats.release();
+        this.blobCentroids.release();
+        this.labelValues = null;
+        this.contours.deallocate();
+        this.polygon.release();
+        this.histHue.release();
+        this.grayImage.release();
+        this.detectedEdges.release();
+        this.dest.release();
+        this.pyramid[0].release();
+        this.pyramid[1].release();
+        this.pyramidEdges.release();
+        this.fullEdges.release();
+        this.histHueValues = null;
+        this.rows = this.cols = this.type = -1;
+    }
+
+}
@@ -0,0 +1,92 @@
+package it.polito.teaching.cv;
+
+import java.util.Locale;
+
+/**
+ * The timed steps of a frame through the pipeline.
+ *
+ * @since 1.6
+ */
+public enum Stage {
+
+    /**
+     * Reading the frame from its source
+     */
+    CAPTURE,
+    /**
+     * Comparing the frame with the previous ones, tile by tile
+     */
+    DIFF,
+    /**
+     * Color conversion (to HSV or grayscale)
+     */
+    CVT_COLOR,
+    /**
+     * Splitting the HSV planes
+     */
+    SPLIT,
+    /**
+     * Hue histogram and average
+     */
+    CALC_HIST,
+    /**
+     * Each of the two thresholds of the background removal
+     */
+    THRESHOLD,
+    /**
+     * Noise reduction
+     */
+    BLUR,
+    /**
+     * Dilation and erosion
+     */
+    MORPHOLOGY,
+    /**
+     * Scaling the frame down and the mask back up, for a mask computed at a
+     * reduced resolution
+     */
+    RESIZE,
+    /**
+     * The connected components (blobs) of the mask
+     */
+    COMPONENTS,
+    /**
+     * Outlining the mask with polygons, and encoding them
+     */
+    POLYGONS,
+    /**
+     * Tracking the foreground and moving the mask of the keyframe
+     */
+    FLOW,
+    /**
+     * Classifying the pixels with the background model, and updating it
+     */
+    BACKGROUND_MODEL,
+    /**
+     * The Canny detector
+     */
+    CANNY,
+    /**
+     * Composing the output frame with the mask
+     */
+    COPY_TO,
+    /**
+     * The whole segmentation of a frame
+     */
+    PROCESSING,
+    /**
+     * The conversion of the output frame for display (mat2Image)
+     */
+    RENDER,
+    /**
+     * From the capture of a frame to its display (or output)
+     */
+    END_TO_END;
+
+    /**
+     * @return the name of the stage in metrics, e.g. <code>cvt_color</code>
+     */
+    public String metricName() {
+        return this.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,67 @@
+package it.polito.teaching.cv;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for a {@link Stage} of the pipeline that
+ * took longer than the threshold (10 ms by default, it can be changed in the
+ * recording settings).
+ * <p>
+ * Use {@link #start()} and {@link #finish(StageEvent, Stage)}: nothing is
+ * allocated while the event is disabled.
+ *
+ * @since 1.6
+ */
+@Name("it.polito.teaching.cv.Stage")
+@Label("Segmentation Stage")
+@Category("Image Segmentation")
+@Description("A slow step in the processing of a frame")
+@Threshold("10 ms")
+@StackTrace(false)
+public class StageEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(StageEvent.class);
+
+    @Label("Stage")
+    String stage;
+
+    /**
+     * Begin timing a stage, if the event is enabled
+     *
+     * @return the started event, or <code>null</code> if disabled
+     */
+    static StageEvent start() {
+        if (!TYPE.isEnabled())
+            return null;
+
+        StageEvent event = new StageEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End timing a stage and record it if it was slow
+     *
+     * @param event the event returned by {@link #start()}, possibly
+     *              <code>null</code>
+     * @param stage the timed stage
+     */
+    static void finish(StageEvent event, Stage stage) {
+        if (event == null)
+            return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = stage.metricName();
+            event.commit();
+        }
+    }
+
+}
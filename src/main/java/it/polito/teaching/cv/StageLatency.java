@@ -0,0 +1,79 @@
+package it.polito.teaching.cv;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the latency of one {@link Stage}, in milliseconds, as
+ * exported over JMX (where it is mapped to a composite value).
+ *
+ * @since 1.6
+ */
+public class StageLatency {
+
+    private final String stage;
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double max;
+
+    @ConstructorProperties({"stage", "count", "mean", "p50", "p90", "p99", "max"})
+    public StageLatency(String stage, long count, double mean, double p50, double p90, double p99, double max) {
+        this.stage = stage;
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    /**
+     * Take a snapshot of a histogram
+     *
+     * @param stage     the stage
+     * @param histogram its recorded latencies
+     * @return the percentiles of the histogram, in milliseconds
+     */
+    static StageLatency of(Stage stage, LatencyHistogram histogram) {
+        return new StageLatency(stage.metricName(), histogram.count(), histogram.mean() / 1e6,
+                histogram.valueAtPercentile(50) / 1e6, histogram.valueAtPercentile(90) / 1e6,
+                histogram.valueAtPercentile(99) / 1e6, histogram.max() / 1e6);
+    }
+
+    /**
+     * @return the name of the stage, e.g. <code>cvt_color</code>
+     */
+    public String getStage() {
+        return this.stage;
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    public double getMean() {
+        return this.mean;
+    }
+
+    public double getP50() {
+        return this.p50;
+    }
+
+    public double getP90() {
+        return this.p90;
+    }
+
+    public double getP99() {
+        return this.p99;
+    }
+
+    public double getMax() {
+        return this.max;
+    }
+
+}
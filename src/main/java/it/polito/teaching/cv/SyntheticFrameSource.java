@@ -0,0 +1,124 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Generated frames showing two objects moving over a uniform background,
+ * meant for benchmarking the pipeline without any camera or file.
+ * <p>
+ * Frames are drawn in place into the given {@link Mat}, so generating them
+ * allocates nothing once the resolution is set. The sequence is
+ * deterministic.
+ *
+ * @since 1.6
+ */
+public class SyntheticFrameSource implements FrameSource {
+
+    // a uniform green background and two objects of different hues
+    private final Scalar background = new Scalar(60, 170, 60, 0);
+    private final Scalar square = new Scalar(40, 40, 200, 0);
+    private final Scalar disc = new Scalar(200, 120, 30, 0);
+    private final Rect squareArea = new Rect();
+    private final Point discCenter = new Point();
+
+    private final int width;
+    private final int height;
+    private final double frameRate;
+    // the number of frames to generate, or a negative value for no limit
+    private final long length;
+    private long frameCount;
+    private boolean opened;
+
+    /**
+     * @param width     the width of the frames
+     * @param height    the height of the frames
+     * @param frameRate the declared frame rate
+     * @param length    the number of frames to generate, or a negative value
+     *                  for an endless stream
+     */
+    public SyntheticFrameSource(int width, int height, double frameRate, long length) {
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.length = length;
+    }
+
+    @Override
+    public boolean open() {
+        this.frameCount = 0;
+        this.opened = true;
+        return true;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return this.opened;
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        if (!this.opened || (this.length >= 0 && this.frameCount >= this.length))
+            return false;
+
+        frame.create(this.height, this.width, CV_8UC3);
+        frame.put(this.background);
+
+        // a square bouncing horizontally and a disc bouncing vertically
+        int side = Math.max(1, Math.min(this.width, this.height) / 4);
+        int t = (int) this.frameCount;
+        this.squareArea.x(bounce(t * 4, this.width - side)).y((this.height - side) / 2).width(side).height(side);
+        rectangle(frame, this.squareArea, this.square, FILLED, LINE_8, 0);
+        this.discCenter.x(this.width / 3).y(side / 2 + bounce(t * 3, this.height - side));
+        circle(frame, this.discCenter, side / 2, this.disc, FILLED, LINE_8, 0);
+
+        this.frameCount++;
+        return true;
+    }
+
+    /**
+     * Move back and forth between 0 and <code>range</code>
+     */
+    private static int bounce(int position, int range) {
+        if (range <= 0)
+            return 0;
+        int p = position % (2 * range);
+        return p < range ? p : 2 * range - p;
+    }
+
+    @Override
+    public double frameRate() {
+        return this.frameRate;
+    }
+
+    @Override
+    public int width() {
+        return this.width;
+    }
+
+    @Override
+    public int height() {
+        return this.height;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        this.opened = false;
+    }
+
+    @Override
+    public String toString() {
+        return "synthetic " + this.width + "x" + this.height + "@" + this.frameRate;
+    }
+
+}
@@ -0,0 +1,34 @@
+package it.polito.teaching.cv;
+
+/**
+ * Frames decoded from a recorded video file.
+ *
+ * @since 1.6
+ */
+public class VideoFileFrameSource extends CaptureFrameSource {
+
+    private final String path;
+
+    /**
+     * @param path the path of the video file
+     */
+    public VideoFileFrameSource(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public boolean open() {
+        return this.capture.open(this.path);
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "video " + this.path;
+    }
+
+}
@@ -0,0 +1,77 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static it.polito.teaching.cv.TestFrames.assertSameAsOpenCv;
+
+/**
+ * The Java implementations of the background removal, plain and fused,
+ * against the OpenCV one, including frames smaller than the kernels of the
+ * filters
+ */
+public class JavaBackgroundRemovalTest {
+
+    // {rows, cols}
+    private static final int[][] SIZES = {
+            {5, 7}, {10, 37}, {101, 77}, {480, 640}, {720, 1280}
+    };
+
+    private SegmentationEngine opencv;
+    private SegmentationEngine java;
+
+    @Before
+    public void setUp() {
+        this.opencv = new SegmentationEngine();
+        this.java = new SegmentationEngine();
+    }
+
+    @After
+    public void tearDown() {
+        this.opencv.close();
+        this.java.close();
+    }
+
+    @Test
+    public void javaPicture() {
+        for (int[] size : SIZES)
+            this.check(SegmentationBackend.JAVA, "picture", TestFrames.picture(size[0], size[1]));
+    }
+
+    @Test
+    public void javaSyntheticFrame() {
+        for (int[] size : SIZES)
+            this.check(SegmentationBackend.JAVA, "synthetic", TestFrames.synthetic(size[0], size[1]));
+    }
+
+    @Test
+    public void javaNoise() {
+        for (int[] size : SIZES)
+            this.check(SegmentationBackend.JAVA, "noise", TestFrames.noise(size[0], size[1], size[0] * 31 + size[1]));
+    }
+
+    @Test
+    public void fusedPicture() {
+        for (int[] size : SIZES)
+            this.check(SegmentationBackend.FUSED, "picture", TestFrames.picture(size[0], size[1]));
+    }
+
+    @Test
+    public void fusedSyntheticFrame() {
+        for (int[] size : SIZES)
+            this.check(SegmentationBackend.FUSED, "synthetic", TestFrames.synthetic(size[0], size[1]));
+    }
+
+    @Test
+    public void fusedNoise() {
+        for (int[] size : SIZES)
+            this.check(SegmentationBackend.FUSED, "noise", TestFrames.noise(size[0], size[1], size[0] * 31 + size[1]));
+    }
+
+    private void check(SegmentationBackend backend, String name, Mat frame) {
+        assertSameAsOpenCv(this.opencv, this.java, backend, name, frame);
+    }
+
+}
@@ -0,0 +1,183 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The exposition text of {@link MetricsHttpServer}, scraped over the
+ * loopback interface from a pipeline that is registered but not started
+ */
+public class MetricsHttpServerTest {
+
+    // the recorded processing latencies, in nanoseconds
+    private static final long[] LATENCIES = {200_000, 800_000, 3_000_000, 3_000_000, 40_000_000, 2_000_000_000L};
+
+    private SyntheticFrameSource source;
+    private FramePipeline pipeline;
+    private PipelineMonitor monitor;
+    private MetricsHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(1);
+        this.source = new SyntheticFrameSource(64, 48, 30, -1);
+        this.pipeline = new FramePipeline(this.source, 4, BackpressurePolicy.BLOCK, metrics,
+                new FramePipeline.FrameHandler() {
+
+                    @Override
+                    public void handle(Mat frame, long timestamp, long captureDuration) {
+                    }
+                });
+        this.monitor = new PipelineMonitor(this.source, this.pipeline,
+                new AtomicReference<>(SegmentationParams.builder().build()));
+        this.monitor.register();
+        this.server = new MetricsHttpServer(0);
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop();
+        this.monitor.unregister();
+        this.pipeline.close();
+    }
+
+    @Test
+    public void frameCounters() throws IOException {
+        FrameCounters counters = this.pipeline.getCounters();
+        for (int i = 0; i < 5; i++)
+            counters.frameCaptured();
+        counters.frameProcessed();
+
+        List<String> lines = this.scrape();
+        assertTrue(lines.contains("# TYPE cv_frames_total counter"));
+        assertEquals(5, this.value(lines, "cv_frames_total", ",state=\"captured\""), 0);
+        assertEquals(1, this.value(lines, "cv_frames_total", ",state=\"processed\""), 0);
+        assertTrue(lines.contains("# TYPE cv_queue_frames gauge"));
+    }
+
+    @Test
+    public void eventCounters() throws IOException {
+        PipelineMetrics metrics = this.pipeline.getMetrics();
+        metrics.addToGauge(Gauge.HUE_UPDATES, 3);
+        metrics.addToGauge(Gauge.HUE_SCENE_CHANGES, 1);
+        metrics.addToGauge(Gauge.KEYFRAMES, 2);
+        metrics.addToGauge(Gauge.CANNY_UPDATES, 4);
+        metrics.setGauge(Gauge.HUE_THRESHOLD, 42.5);
+
+        List<String> lines = this.scrape();
+        for (Gauge gauge : Gauge.values()) {
+            String name = "cv_" + gauge.metricName();
+            if (gauge.isCounter()) {
+                assertTrue(name, lines.contains("# TYPE " + name + "_total counter"));
+                assertFalse(name, lines.contains("# TYPE " + name + " gauge"));
+            } else {
+                assertTrue(name, lines.contains("# TYPE " + name + " gauge"));
+            }
+        }
+        assertEquals(3, this.value(lines, "cv_hue_updates_total", ""), 0);
+        assertEquals(1, this.value(lines, "cv_hue_scene_changes_total", ""), 0);
+        assertEquals(2, this.value(lines, "cv_keyframes_total", ""), 0);
+        assertEquals(4, this.value(lines, "cv_canny_updates_total", ""), 0);
+        assertEquals(42.5, this.value(lines, "cv_hue_threshold", ""), 0);
+    }
+
+    @Test
+    public void latencyHistogram() throws IOException {
+        PipelineMetrics metrics = this.pipeline.getMetrics();
+        long total = 0;
+        for (long latency : LATENCIES) {
+            metrics.recordValue(Stage.PROCESSING, latency);
+            total += latency;
+        }
+
+        List<String> lines = this.scrape();
+        assertTrue(lines.contains("# TYPE cv_stage_latency_seconds histogram"));
+
+        // cumulative buckets, ending with +Inf
+        String prefix = "cv_stage_latency_seconds_bucket" + this.labels() + ",stage=\"processing\",le=\"";
+        List<String> buckets = new ArrayList<>();
+        for (String line : lines)
+            if (line.startsWith(prefix))
+                buckets.add(line);
+        assertTrue("no buckets", buckets.size() > 1);
+        double previous = 0;
+        for (String line : buckets) {
+            double count = Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+            assertTrue("decreasing bucket " + line, count >= previous);
+            previous = count;
+        }
+        String last = buckets.get(buckets.size() - 1);
+        assertTrue(last, last.startsWith(prefix + "+Inf\"} "));
+        assertEquals(LATENCIES.length, previous, 0);
+
+        // the one-second bucket misses the two-second frame only
+        assertEquals(LATENCIES.length - 1, this.value(lines, "cv_stage_latency_seconds_bucket",
+                ",stage=\"processing\",le=\"1\""), 0);
+        assertEquals(LATENCIES.length, this.value(lines, "cv_stage_latency_seconds_count",
+                ",stage=\"processing\""), 0);
+        assertEquals(total / 1e9, this.value(lines, "cv_stage_latency_seconds_sum", ",stage=\"processing\""),
+                1e-3);
+
+        // stages without frames are left out
+        for (String line : lines)
+            assertFalse(line, line.contains("stage=\"capture\""));
+    }
+
+    /**
+     * @return the lines of the exposition text
+     */
+    private List<String> scrape() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/metrics");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType(), connection.getContentType().startsWith("text/plain"));
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null)
+                    lines.add(line);
+            }
+            return lines;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the value of a sample of the monitored pipeline
+     */
+    private double value(List<String> lines, String name, String labels) {
+        String prefix = name + this.labels() + labels + "} ";
+        for (String line : lines)
+            if (line.startsWith(prefix))
+                return Double.parseDouble(line.substring(prefix.length()));
+        throw new AssertionError("No sample " + prefix);
+    }
+
+    /**
+     * @return the labels of the monitored pipeline, left open
+     */
+    private String labels() {
+        return "{pipeline=\"" + this.monitor.getName() + "\",source=\"" + this.monitor.getSource() + "\"";
+    }
+
+}
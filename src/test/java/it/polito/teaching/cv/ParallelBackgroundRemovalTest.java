@@ -0,0 +1,65 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static it.polito.teaching.cv.TestFrames.assertSameAsOpenCv;
+
+/**
+ * {@link SegmentationBackend#PARALLEL} against the serial OpenCV background
+ * removal: a single stripe, stripes of the minimum height, and frames whose
+ * height is not divisible by the number of stripes
+ */
+public class ParallelBackgroundRemovalTest {
+
+    // {rows, cols}
+    private static final int[][] SIZES = {
+            {10, 37}, {30, 64}, {48, 48}, {101, 77}, {173, 120}, {480, 640}, {722, 1280}
+    };
+
+    private ForkJoinPool pool;
+    private SegmentationEngine serial;
+    private SegmentationEngine parallel;
+
+    @Before
+    public void setUp() {
+        // up to 7 stripes, whatever the cores of the machine
+        this.pool = new ForkJoinPool(7);
+        this.serial = new SegmentationEngine();
+        this.parallel = new SegmentationEngine(new PipelineMetrics(0), this.pool);
+    }
+
+    @After
+    public void tearDown() {
+        this.serial.close();
+        this.parallel.close();
+        this.pool.shutdown();
+    }
+
+    @Test
+    public void samePicture() {
+        for (int[] size : SIZES)
+            this.check("picture", TestFrames.picture(size[0], size[1]));
+    }
+
+    @Test
+    public void sameSyntheticFrame() {
+        for (int[] size : SIZES)
+            this.check("synthetic", TestFrames.synthetic(size[0], size[1]));
+    }
+
+    @Test
+    public void sameNoise() {
+        for (int[] size : SIZES)
+            this.check("noise", TestFrames.noise(size[0], size[1], size[0] * 31 + size[1]));
+    }
+
+    private void check(String name, Mat frame) {
+        assertSameAsOpenCv(this.serial, this.parallel, SegmentationBackend.PARALLEL, name, frame);
+    }
+
+}
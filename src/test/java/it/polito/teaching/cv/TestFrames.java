@@ -0,0 +1,123 @@
+package it.polito.teaching.cv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The frames the backends are compared on, and the comparison
+ */
+final class TestFrames {
+
+    private TestFrames() {
+    }
+
+    /**
+     * @return the sample picture of the project, scaled to the given size
+     */
+    static Mat picture(int rows, int cols) {
+        Mat original;
+        try {
+            original = imread(new File(TestFrames.class.getResource("/original.png").toURI()).getPath());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        Mat frame = new Mat();
+        resize(original, frame, new Size(cols, rows));
+        original.release();
+        return frame;
+    }
+
+    /**
+     * @return a frame of {@link SyntheticFrameSource}, of the given size
+     */
+    static Mat synthetic(int rows, int cols) {
+        SyntheticFrameSource source = new SyntheticFrameSource(cols, rows, 30, -1);
+        source.open();
+        Mat frame = new Mat();
+        for (int i = 0; i < 10; i++)
+            source.read(frame);
+        source.close();
+        return frame;
+    }
+
+    /**
+     * @return a frame of random pixels, the same for the same seed
+     */
+    static Mat noise(int rows, int cols, long seed) {
+        Mat frame = new Mat(rows, cols, CV_8UC3);
+        ByteBuffer pixels = frame.createBuffer();
+        Random random = new Random(seed);
+        for (int i = 0; i < rows * cols * 3; i++)
+            pixels.put(i, (byte) random.nextInt(256));
+        return frame;
+    }
+
+    /**
+     * Check that a backend removes the background of a frame as the OpenCV
+     * one, bit for bit, with and without the inverse threshold and the
+     * morphology
+     *
+     * @param opencv  the engine of the OpenCV background removal
+     * @param engine  the engine of the backend
+     * @param backend the backend
+     * @param name    the name of the frame, for the messages
+     * @param frame   the frame, released once checked
+     */
+    static void assertSameAsOpenCv(SegmentationEngine opencv, SegmentationEngine engine,
+                                   SegmentationBackend backend, String name, Mat frame) {
+        try {
+            for (boolean inverse : new boolean[]{false, true}) {
+                for (boolean morphology : new boolean[]{false, true}) {
+                    String message = backend + " " + name + " " + frame.rows() + "x" + frame.cols() + ", inverse "
+                            + inverse + ", morphology " + morphology;
+                    Mat expected = opencv.process(frame,
+                            backgroundRemoval(SegmentationBackend.OPENCV, inverse, morphology));
+                    Mat actual = engine.process(frame, backgroundRemoval(backend, inverse, morphology));
+                    assertSameImage(message, expected, actual);
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static SegmentationParams backgroundRemoval(SegmentationBackend backend, boolean inverse,
+                                                        boolean morphology) {
+        return SegmentationParams.builder()
+                .mode(SegmentationMode.BACKGROUND_REMOVAL)
+                .backend(backend)
+                .inverse(inverse)
+                .morphology(morphology)
+                .build();
+    }
+
+    /**
+     * Check that two images are the same, bit for bit
+     */
+    static void assertSameImage(String message, Mat expected, Mat actual) {
+        assertEquals(message + ": rows", expected.rows(), actual.rows());
+        assertEquals(message + ": columns", expected.cols(), actual.cols());
+        assertEquals(message + ": type", expected.type(), actual.type());
+
+        Mat diff = new Mat();
+        absdiff(expected, actual, diff);
+        Mat channels = diff.reshape(1);
+        try {
+            assertEquals(message + ": differing values", 0, countNonZero(channels));
+        } finally {
+            channels.deallocate();
+            diff.release();
+        }
+    }
+
+}